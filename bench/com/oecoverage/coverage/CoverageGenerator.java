@@ -0,0 +1,215 @@
+package com.oecoverage.coverage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates deterministic profiler outputs and Source Listings for the benchmarks.
+ * The same parameters and seed always generate the same files.
+ */
+public class CoverageGenerator {
+	private static final String[] STATEMENTS = { "DISPLAY x.", "DO:", "END.", "IF x THEN DO:", "ASSIGN x = 1.", "FOR EACH t: ", "x = x + 1.", "MESSAGE 'hi'." };
+
+	private int sources;
+	private int lines;
+	private int includeDepth;
+	private double hitRatio;
+	private long seed = 42;
+
+	// Number of listing lines of each source, known after the listings are written.
+	private int[] listingLines;
+
+	/**
+	 * @param sources Number of compile units.
+	 * @param lines Number of lines of each compile unit and include file.
+	 * @param includeDepth Nesting depth of the include files referenced by each compile unit, zero for none.
+	 * @param hitRatio Ratio of the listing lines covered in each profiler output.
+	 */
+	public CoverageGenerator(int sources, int lines, int includeDepth, double hitRatio) {
+		this.sources = sources;
+		this.lines = lines;
+		this.includeDepth = includeDepth;
+		this.hitRatio = hitRatio;
+		this.listingLines = new int[sources];
+	}
+
+	/**
+	 * Generates the listings in "lis" and the profiler outputs in "prof", under the directory.
+	 *
+	 * @param directory Directory where the files are generated.
+	 * @param profilers Number of profiler outputs.
+	 */
+	public void generate(File directory, int profilers) throws IOException {
+		this.writeListings(new File(directory, "lis"));
+
+		File prof = new File(directory, "prof");
+		prof.mkdirs();
+
+		for (int i = 0; i < profilers; i++) {
+			this.writeProfiler(new File(prof, "run" + i + ".out"), i);
+		}
+	}
+
+	/**
+	 * Name of the compile unit, relative to the listing path.
+	 */
+	public String getSource(int source) {
+		return "app/module" + (source % 10) + "/program" + source + ".p";
+	}
+
+	/**
+	 * Writes the listing of each compile unit under the listing path.
+	 */
+	public void writeListings(File listingPath) throws IOException {
+		Random random = new Random(seed);
+
+		for (int i = 0; i < sources; i++) {
+			File file = new File(listingPath, this.getSource(i));
+			file.getParentFile().mkdirs();
+			listingLines[i] = this.writeListing(file, i, random);
+		}
+	}
+
+	/**
+	 * Writes the listing of a compile unit.
+	 *
+	 * @return Number of listing lines.
+	 */
+	public int writeListing(File file, int source, Random random) throws IOException {
+		List<String> listing = new ArrayList<String>();
+		int[] include = { 0 };
+
+		this.addLines(listing, source, 0, 0, include, random);
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			for (String line : listing) {
+				writer.write(line);
+				writer.write('\n');
+			}
+
+			// The listing lines are followed by the block and buffer summary, not read.
+			writer.write("\f\nFile Name       Line Blk. Type   Tran            Blk. Label\n");
+		}
+
+		return listing.size();
+	}
+
+	/**
+	 * Adds the lines of a source to the listing, with an include reference in the
+	 * middle while the nesting depth is not reached.
+	 */
+	private void addLines(List<String> listing, int source, int number, int depth, int[] include, Random random) {
+		int reference = (depth < includeDepth ? lines / 2 : -1);
+
+		for (int line = 1; line <= lines; line++) {
+			int block = (random.nextInt(3) == 0 ? 1 + random.nextInt(depth + 1) : 0);
+
+			if (line == reference) {
+				String name = "app/inc/level" + (depth + 1) + "/inc" + (source % 5) + ".i";
+
+				// Half of the references are broken in two listing lines.
+				if (random.nextBoolean()) {
+					listing.add(format(number, line, block, "{" + name + " &p1=\"a\" &p2=\"b\"}"));
+				} else {
+					listing.add(format(number, line, block, "{" + name + " &p1=\"a\""));
+					listing.add(format(number, ++line, block, "  &p2=\"b\"}"));
+				}
+
+				this.addLines(listing, source, ++include[0], depth + 1, include, random);
+				continue;
+			}
+
+			listing.add(format(number, line, block, STATEMENTS[random.nextInt(STATEMENTS.length)]));
+		}
+	}
+
+	private static String format(int include, int line, int block, String content) {
+		return String.format("%2s%5d %3s %s", (include == 0 ? "" : include), line, (block == 0 ? "" : block), content);
+	}
+
+	/**
+	 * Writes a profiler output covering the listings, the listings must be written first.
+	 *
+	 * @param file Profiler output.
+	 * @param run Number of the run, each run covers different lines.
+	 */
+	public void writeProfiler(File file, int run) throws IOException {
+		Random random = new Random(seed * 31 + run);
+
+		try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+			writer.write("1 06/26/2018 \"Run" + run + "\" 18:00:00 \"\"\n.\n");
+
+			for (int i = 0; i < sources; i++) {
+				writer.write((i + 1) + " \"" + this.getSource(i) + "\" \"\" 0\n");
+			}
+
+			writer.write(".\n");
+
+			for (int i = 0; i < sources; i++) {
+				writer.write((i + 1) + " " + (1 + random.nextInt(this.getLines(i))) + " " + (1 + random.nextInt(sources)) + " " + (1 + random.nextInt(9)) + "\n");
+			}
+
+			writer.write(".\n");
+
+			for (int i = 0; i < sources; i++) {
+				for (int line = 1; line <= this.getLines(i); line++) {
+					if (random.nextDouble() < hitRatio) {
+						writer.write((i + 1) + " " + line + " " + (1 + random.nextInt(50)) + " 0.000496 0.024800\n");
+					}
+				}
+			}
+
+			writer.write(".\n.\n");
+
+			for (int i = 0; i < sources; i++) {
+				writer.write((i + 1) + " \"\" " + this.getLines(i) + "\n");
+
+				for (int line = 1; line <= this.getLines(i); line++) {
+					writer.write(line + "\n");
+				}
+
+				writer.write(".\n");
+			}
+		}
+	}
+
+	private int getLines(int source) {
+		return (listingLines[source] > 0 ? listingLines[source] : lines);
+	}
+
+	/**
+	 * Deletes the generated files.
+	 */
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * Discards the progress messages written to the standard output by the measured code.
+	 */
+	public static void silence() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+}
@@ -0,0 +1,69 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generation of the coverage XML by SonarCoverage.createDataTest, from the
+ * profiler coverage already read, including the listing reading and mapping.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoverageReportBenchmark {
+	@Param({ "100" })
+	public int sources;
+
+	@Param({ "500" })
+	public int lines;
+
+	@Param({ "2" })
+	public int includeDepth;
+
+	@Param({ "0.3" })
+	public double hitRatio;
+
+	private File directory;
+	private File output;
+	private SonarCoverage coverage;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		CoverageGenerator.silence();
+
+		directory = Files.createTempDirectory("coverage").toFile();
+		new CoverageGenerator(sources, lines, includeDepth, hitRatio).generate(directory, 2);
+
+		output = new File(directory, "coverage.xml");
+		coverage = new SonarCoverage(new File(directory, "prof").getPath(), new File(directory, "lis").getPath(), "");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CoverageGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public long createDataTest() throws IOException {
+		coverage.createDataTest(output.getPath());
+		return output.length();
+	}
+}
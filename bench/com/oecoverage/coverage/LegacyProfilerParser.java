@@ -0,0 +1,128 @@
+package com.oecoverage.coverage;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The profiler parsing based on regular expressions and String.split, as it was
+ * before ProfilerScanner, kept only to be compared in the benchmarks.
+ */
+public class LegacyProfilerParser {
+	private Map<String, LineCoverage> sources = new HashMap<String, LineCoverage>();
+	private Map<Integer, String> dbg = new HashMap<Integer, String>();
+
+	public void readProfiler(String file) throws IOException {
+		String line = null;
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		LineCoverage source = null;
+
+		int blocks = 0;
+		boolean readingLines = false;
+
+		dbg.clear();
+
+		while ((line = reader.readLine()) != null) {
+			if (line.equals(".")) {
+				blocks++;
+
+				source = null;
+				readingLines = false;
+			} else if (!line.isEmpty()) {
+				switch (blocks) {
+					case 0:
+						break;
+					case 1:
+						if (!parseSource(line)) {
+							blocks++;
+						}
+						break;
+					case 2:
+						this.parseRecord(line, 4);
+						break;
+					case 3:
+						this.parseRecord(line, 5);
+						break;
+					default:
+						if (blocks > 4) {
+							if (!readingLines) {
+								source = this.getLinesSource(line);
+								readingLines = (source != null);
+							} else if (source != null) {
+								int lineno = Integer.valueOf(line);
+
+								if (lineno > 0) {
+									source.add(lineno, false);
+								}
+							}
+						}
+				}
+			}
+		}
+
+		reader.close();
+	}
+
+	public Map<String, LineCoverage> getSources() {
+		return sources;
+	}
+
+	private boolean parseSource(String sourceLine) {
+		Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(sourceLine);
+
+		matcher.find();
+		int codeno = Integer.valueOf(matcher.group(2));
+
+		matcher.find();
+		try {
+			String list[] = matcher.group(1).split(" ");
+			dbg.put(codeno, list[list.length - 1].replace("\\", "/"));
+		} catch (Exception e) {
+			return false;
+		}
+		return true;
+	}
+
+	private boolean parseRecord(String recordLine, int tokens) {
+		String[] splitted = recordLine.split(" ");
+
+		if (splitted.length == tokens && !splitted[0].trim().equals("") && !splitted[1].trim().equals("")) {
+			int codeno = Integer.valueOf(splitted[0].trim());
+			int lineno = Integer.valueOf(splitted[1].trim());
+			String filename = dbg.get(codeno);
+
+			if (lineno > 0 && filename != null) {
+				this.getSource(filename).add(lineno, true);
+			}
+
+			return true;
+		}
+
+		return false;
+	}
+
+	private LineCoverage getLinesSource(String line) {
+		Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(line);
+
+		if (matcher.find() && matcher.group(2) != null) {
+			String filename = dbg.get(Integer.valueOf(matcher.group(2)));
+			return (filename == null ? null : this.getSource(filename));
+		}
+
+		return null;
+	}
+
+	private LineCoverage getSource(String filename) {
+		LineCoverage source = sources.get(filename);
+
+		if (source == null) {
+			source = new LineCoverage();
+			sources.put(filename, source);
+		}
+
+		return source;
+	}
+}
@@ -0,0 +1,59 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of a single Source Listing, including the include file resolution.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingFileBenchmark {
+	@Param({ "5000" })
+	public int lines;
+
+	@Param({ "0", "4" })
+	public int includeDepth;
+
+	private File directory;
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		CoverageGenerator.silence();
+
+		directory = Files.createTempDirectory("listing").toFile();
+		file = new File(directory, "program.p");
+		new CoverageGenerator(1, lines, includeDepth, 0).writeListing(file, 0, new Random(42));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CoverageGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public ListingFile parse() throws IOException {
+		return new ListingFile("program.p", file.getPath());
+	}
+}
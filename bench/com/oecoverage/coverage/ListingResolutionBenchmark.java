@@ -0,0 +1,70 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Resolution of the listing file of every compile unit by
+ * SonarCoverage.checkAbsolutePath, probing the file system or the listing index.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingResolutionBenchmark {
+	@Param({ "1000" })
+	public int sources;
+
+	@Param({ "false", "true" })
+	public boolean listingIndex;
+
+	private CoverageGenerator generator;
+	private File directory;
+	private SonarCoverage coverage;
+	private String listingPath;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		CoverageGenerator.silence();
+
+		directory = Files.createTempDirectory("coverage").toFile();
+		generator = new CoverageGenerator(sources, 20, 0, 0.3);
+		generator.generate(directory, 1);
+
+		CoverageOptions options = new CoverageOptions();
+		options.setListingIndex(listingIndex);
+
+		listingPath = new File(directory, "lis").getPath();
+		coverage = new SonarCoverage(new File(directory, "prof").getPath(), listingPath, "", options);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		CoverageGenerator.delete(directory);
+	}
+
+	@Benchmark
+	public void resolve(Blackhole blackhole) throws IOException {
+		for (int i = 0; i < sources; i++) {
+			blackhole.consume(coverage.checkAbsolutePath(generator.getSource(i), listingPath));
+		}
+	}
+}
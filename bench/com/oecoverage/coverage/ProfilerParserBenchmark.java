@@ -0,0 +1,66 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the ProfilerScanner based parsing with the former regular expression
+ * and String.split based one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfilerParserBenchmark {
+	@Param({ "200" })
+	public int sources;
+
+	@Param({ "500" })
+	public int lines;
+
+	@Param({ "0.3" })
+	public double hitRatio;
+
+	private File file;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		file = File.createTempFile("profiler", ".out");
+		new CoverageGenerator(sources, lines, 0, hitRatio).writeProfiler(file, 0);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public ProfilerCoverage scanner() throws IOException {
+		ProfilerCoverage profiler = new ProfilerCoverage();
+		profiler.readProfiler(file.getPath());
+		return profiler;
+	}
+
+	@Benchmark
+	public LegacyProfilerParser legacy() throws IOException {
+		LegacyProfilerParser profiler = new LegacyProfilerParser();
+		profiler.readProfiler(file.getPath());
+		return profiler;
+	}
+}
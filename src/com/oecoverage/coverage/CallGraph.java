@@ -0,0 +1,499 @@
+package com.oecoverage.coverage;
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Calls between the sources, read from the call tree block of the profiler
+ * outputs and summed across all of them. Each call site, the caller source and
+ * line and the callee source, keeps its number of calls and the cumulative
+ * time of the caller line, read from the coverage block of the same profiler
+ * output and split among the callees of the line by their number of calls.
+ * The sources are identified by name, so the calls of all the profiler files
+ * are unified, whatever the code numbers of each file.
+ */
+public class CallGraph {
+	/**
+	 * Orders the calls by time, then by number of calls.
+	 */
+	private static final Comparator<Call> BY_WEIGHT = new Comparator<Call>() {
+		@Override
+		public int compare(Call a, Call b) {
+			int compare = Double.compare(a.time, b.time);
+			return (compare != 0 ? compare : Long.compare(a.calls, b.calls));
+		}
+	};
+
+	private static final int MAX_PATH_LENGTH = 32;
+	private static final int MAX_PATH_EXPANSIONS = 100000;
+
+	private Map<Call, Call> calls = new HashMap<Call, Call>();
+
+	// Call sites of the profiler output being read, by caller and line, with their calls in this output.
+	private Map<Call, List<Call>> fileSites = new HashMap<Call, List<Call>>();
+	private Map<Call, Long> fileCalls = new HashMap<Call, Long>();
+
+	/**
+	 * Starts reading a new profiler output, whose line times are joined to its own calls only.
+	 */
+	void startFile() {
+		fileSites.clear();
+		fileCalls.clear();
+	}
+
+	/**
+	 * Adds the calls of a call site.
+	 *
+	 * @param caller Caller source name.
+	 * @param line Caller line.
+	 * @param callee Callee source name.
+	 * @param count Number of calls.
+	 */
+	void add(String caller, int line, String callee, long count) {
+		Call call = this.get(caller, line, callee);
+		call.calls += count;
+
+		Call site = new Call(caller, line, null);
+		List<Call> sites = fileSites.get(site);
+
+		if (sites == null) {
+			sites = new ArrayList<Call>();
+			fileSites.put(site, sites);
+		}
+
+		if (!fileCalls.containsKey(call)) {
+			sites.add(call);
+		}
+
+		fileCalls.put(call, (fileCalls.containsKey(call) ? fileCalls.get(call) : 0) + count);
+	}
+
+	/**
+	 * Adds the cumulative time of a line of the profiler output being read to
+	 * its call sites, split by their number of calls.
+	 *
+	 * @param source Source name.
+	 * @param line Line number.
+	 * @param time Cumulative time of the line.
+	 */
+	void addTime(String source, int line, double time) {
+		List<Call> sites = fileSites.get(new Call(source, line, null));
+
+		if (sites == null) {
+			return;
+		}
+
+		long total = 0;
+
+		for (Call site : sites) {
+			total += fileCalls.get(site);
+		}
+
+		for (Call site : sites) {
+			site.time += (total == 0 ? time / sites.size() : time * fileCalls.get(site) / total);
+		}
+	}
+
+	/**
+	 * Merges the calls of another graph into this one.
+	 *
+	 * @param other Graph to be merged.
+	 */
+	public void merge(CallGraph other) {
+		for (Call call : other.calls.values()) {
+			this.add(call);
+		}
+	}
+
+	private void add(Call other) {
+		Call call = this.get(other.caller, other.line, other.callee);
+		call.calls += other.calls;
+		call.time += other.time;
+	}
+
+	private Call get(String caller, int line, String callee) {
+		Call key = new Call(caller, line, callee);
+		Call call = calls.get(key);
+
+		if (call == null) {
+			call = key;
+			calls.put(key, call);
+		}
+
+		return call;
+	}
+
+	/**
+	 * Call sites, in no particular order.
+	 */
+	public Collection<Call> getCalls() {
+		return Collections.unmodifiableCollection(calls.values());
+	}
+
+	/**
+	 * Names of the callers and callees.
+	 */
+	Set<String> getSources() {
+		Set<String> sources = new HashSet<String>();
+
+		for (Call call : calls.values()) {
+			sources.add(call.caller);
+			sources.add(call.callee);
+		}
+
+		return sources;
+	}
+
+	/**
+	 * Writes the call sites, with the source names as ids of the informed table.
+	 *
+	 * @param output Output where the calls are written.
+	 * @param ids Id of each source name.
+	 * @throws IOException
+	 */
+	void write(DataOutput output, Map<String, Integer> ids) throws IOException {
+		LineCoverage.writeVarInt(output, calls.size());
+
+		for (Call call : this.getSortedCalls()) {
+			LineCoverage.writeVarInt(output, ids.get(call.caller));
+			LineCoverage.writeVarInt(output, call.line);
+			LineCoverage.writeVarInt(output, ids.get(call.callee));
+			output.writeLong(call.calls);
+			output.writeDouble(call.time);
+		}
+	}
+
+	/**
+	 * Reads the call sites written by {@link #write(DataOutput, Map)}, merging them into this graph.
+	 *
+	 * @param input Input where the calls are read from.
+	 * @param names Source names, by id.
+	 * @throws IOException
+	 */
+	void read(DataInput input, List<String> names) throws IOException {
+		int count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			String caller = getName(names, LineCoverage.readVarInt(input));
+			int line = LineCoverage.readVarInt(input);
+			String callee = getName(names, LineCoverage.readVarInt(input));
+
+			Call call = new Call(caller, line, callee);
+			call.calls = input.readLong();
+			call.time = input.readDouble();
+
+			this.add(call);
+		}
+	}
+
+	private static String getName(List<String> names, int id) throws IOException {
+		if (id < 0 || id >= names.size()) {
+			throw new IOException("Invalid source id in call graph: " + id);
+		}
+
+		return names.get(id);
+	}
+
+	/**
+	 * Writes the graph, as DOT when the file name ends with ".dot", as CSV otherwise.
+	 * The CSV has the call sites, followed by an empty line and the heaviest call paths.
+	 * In DOT, the calls between two sources are summed into one edge and the edges
+	 * of the heaviest call paths are highlighted.
+	 *
+	 * @param output File where the graph is written.
+	 * @param top Number of heaviest call paths written.
+	 * @throws IOException
+	 */
+	public void write(String output, int top) throws IOException {
+		Map<String, Map<String, Call>> edges = this.getEdges();
+		List<CallPath> paths = this.getHeaviestPaths(edges, top);
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+			if (output.toLowerCase(Locale.ROOT).endsWith(".dot")) {
+				this.writeDot(writer, edges, paths);
+			} else {
+				this.writeCsv(writer, paths);
+			}
+		}
+
+		System.out.println("** Call graph written to \"" + output + "\" **");
+	}
+
+	private void writeCsv(Writer writer, List<CallPath> paths) throws IOException {
+		writer.write("caller,line,callee,calls,cumulative_time\n");
+
+		for (Call call : this.getSortedCalls()) {
+			writer.write(csv(call.caller) + "," + call.line + "," + csv(call.callee) + "," + call.calls + "," + format(call.time) + "\n");
+		}
+
+		writer.write("\nrank,calls,cumulative_time,path\n");
+
+		for (int i = 0; i < paths.size(); i++) {
+			CallPath path = paths.get(i);
+			writer.write((i + 1) + "," + path.weight.calls + "," + format(path.weight.time) + "," + csv(path.toString()) + "\n");
+		}
+	}
+
+	private void writeDot(Writer writer, Map<String, Map<String, Call>> edges, List<CallPath> paths) throws IOException {
+		Set<String> highlighted = new HashSet<String>();
+
+		writer.write("digraph calls {\n  node [shape=box];\n");
+
+		for (int i = 0; i < paths.size(); i++) {
+			CallPath path = paths.get(i);
+			writer.write("  // path " + (i + 1) + ": " + path + " (calls " + path.weight.calls + ", time " + format(path.weight.time) + ")\n");
+
+			for (int j = 1; j < path.nodes.size(); j++) {
+				highlighted.add(path.nodes.get(j - 1) + '\n' + path.nodes.get(j));
+			}
+		}
+
+		for (Map.Entry<String, Map<String, Call>> caller : edges.entrySet()) {
+			for (Call edge : caller.getValue().values()) {
+				writer.write("  " + dot(edge.caller) + " -> " + dot(edge.callee) + " [label=\"" + edge.calls + " / " + format(edge.time) + "\""
+						+ (highlighted.contains(edge.caller + '\n' + edge.callee) ? ", color=red, penwidth=3" : "") + "];\n");
+			}
+		}
+
+		writer.write("}\n");
+	}
+
+	/**
+	 * Sums the call sites between the same two sources, sorted by caller and callee.
+	 */
+	private Map<String, Map<String, Call>> getEdges() {
+		Map<String, Map<String, Call>> edges = new TreeMap<String, Map<String, Call>>();
+
+		for (Call call : calls.values()) {
+			Map<String, Call> callees = edges.get(call.caller);
+
+			if (callees == null) {
+				callees = new TreeMap<String, Call>();
+				edges.put(call.caller, callees);
+			}
+
+			Call edge = callees.get(call.callee);
+
+			if (edge == null) {
+				edge = new Call(call.caller, 0, call.callee);
+				callees.put(call.callee, edge);
+			}
+
+			edge.calls += call.calls;
+			edge.time += call.time;
+		}
+
+		return edges;
+	}
+
+	/**
+	 * Finds the heaviest call paths, from the sources never called, or from all
+	 * the callers when every source is called. The weight of a path is the
+	 * weight of its lightest edge, the time and calls that go through the whole
+	 * chain, so a path only gets lighter when extended and the paths are found
+	 * heaviest first. A path ends when it can not be extended without repeating
+	 * a source.
+	 */
+	private List<CallPath> getHeaviestPaths(Map<String, Map<String, Call>> edges, int top) {
+		List<CallPath> found = new ArrayList<CallPath>();
+		PriorityQueue<CallPath> queue = new PriorityQueue<CallPath>(11, new Comparator<CallPath>() {
+			@Override
+			public int compare(CallPath a, CallPath b) {
+				int compare = BY_WEIGHT.compare(b.weight, a.weight);
+				return (compare != 0 ? compare : a.toString().compareTo(b.toString()));
+			}
+		});
+
+		Set<String> called = new HashSet<String>();
+
+		for (Map<String, Call> callees : edges.values()) {
+			called.addAll(callees.keySet());
+		}
+
+		for (String caller : edges.keySet()) {
+			if (!called.contains(caller)) {
+				this.extend(queue, new CallPath(caller), edges);
+			}
+		}
+
+		if (queue.isEmpty()) {
+			for (String caller : edges.keySet()) {
+				this.extend(queue, new CallPath(caller), edges);
+			}
+		}
+
+		for (int expansions = 0; !queue.isEmpty() && found.size() < top && expansions < MAX_PATH_EXPANSIONS; expansions++) {
+			CallPath path = queue.poll();
+
+			if (path.nodes.size() >= MAX_PATH_LENGTH || !this.extend(queue, path, edges)) {
+				found.add(path);
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Adds the extensions of the path to the queue.
+	 *
+	 * @return If the path could be extended.
+	 */
+	private boolean extend(PriorityQueue<CallPath> queue, CallPath path, Map<String, Map<String, Call>> edges) {
+		Map<String, Call> callees = edges.get(path.getLast());
+		boolean extended = false;
+
+		if (callees != null) {
+			for (Call edge : callees.values()) {
+				if (!path.nodes.contains(edge.callee)) {
+					queue.add(new CallPath(path, edge));
+					extended = true;
+				}
+			}
+		}
+
+		return extended;
+	}
+
+	private List<Call> getSortedCalls() {
+		List<Call> sorted = new ArrayList<Call>(calls.values());
+
+		Collections.sort(sorted, new Comparator<Call>() {
+			@Override
+			public int compare(Call a, Call b) {
+				int compare = a.caller.compareTo(b.caller);
+
+				if (compare == 0) {
+					compare = Integer.compare(a.line, b.line);
+				}
+
+				return (compare != 0 ? compare : a.callee.compareTo(b.callee));
+			}
+		});
+
+		return sorted;
+	}
+
+	private static String csv(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String dot(String value) {
+		return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+	}
+
+	private static String format(double time) {
+		return String.format(Locale.ROOT, "%.6f", time);
+	}
+
+	/**
+	 * Calls of a caller line to a callee source. The caller and line alone
+	 * identify a call site of the profiler output being read.
+	 */
+	public static class Call {
+		private String caller;
+		private int line;
+		private String callee;
+		private long calls;
+		private double time;
+
+		Call(String caller, int line, String callee) {
+			this.caller = caller;
+			this.line = line;
+			this.callee = callee;
+		}
+
+		public String getCaller() {
+			return caller;
+		}
+
+		public int getLine() {
+			return line;
+		}
+
+		public String getCallee() {
+			return callee;
+		}
+
+		public long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * Cumulative time of the caller line spent in the calls to this callee, in seconds.
+		 */
+		public double getTime() {
+			return time;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Call)) {
+				return false;
+			}
+
+			Call call = (Call) other;
+			return line == call.line && caller.equals(call.caller) && (callee == null ? call.callee == null : callee.equals(call.callee));
+		}
+
+		@Override
+		public int hashCode() {
+			return (caller.hashCode() * 31 + line) * 31 + (callee == null ? 0 : callee.hashCode());
+		}
+	}
+
+	/**
+	 * Chain of sources, each one called by the previous, with the weight of its lightest edge.
+	 */
+	private static class CallPath {
+		private List<String> nodes = new ArrayList<String>();
+		private Call weight;
+		private String text;
+
+		CallPath(String start) {
+			this.nodes.add(start);
+		}
+
+		CallPath(CallPath path, Call edge) {
+			this.nodes.addAll(path.nodes);
+			this.nodes.add(edge.callee);
+			this.weight = (path.weight == null || BY_WEIGHT.compare(edge, path.weight) < 0 ? edge : path.weight);
+		}
+
+		String getLast() {
+			return nodes.get(nodes.size() - 1);
+		}
+
+		@Override
+		public String toString() {
+			// Compared while the paths are queued, so it is built only once.
+			if (text == null) {
+				StringBuilder builder = new StringBuilder();
+
+				for (String node : nodes) {
+					builder.append(builder.length() == 0 ? "" : " > ").append(node);
+				}
+
+				text = builder.toString();
+			}
+
+			return text;
+		}
+	}
+}
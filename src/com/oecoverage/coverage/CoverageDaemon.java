@@ -0,0 +1,349 @@
+package com.oecoverage.coverage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a coverage updated while new profiler files arrive. The profiler paths
+ * are watched and each new or modified file is read once its size and
+ * modification time stay unchanged for the debounce time, so files still being
+ * written by the profiler are not read. A modified file that was already read
+ * makes the coverage be read again from all the files, as reading it again
+ * would add its counts twice and keep the lines it no longer covers. The XML
+ * is rewritten, through a temporary file moved over it, once for all the
+ * files read together, and may also be served on a local port.
+ */
+public class CoverageDaemon {
+	private SonarCoverage sonar;
+	private ProfilerDiscovery discovery;
+	private File output;
+	private long debounce;
+	private int port;
+	private WatchService watcher;
+	private Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+	private Map<File, PendingFile> pending = new HashMap<File, PendingFile>();
+	private ServerSocket server;
+	private volatile boolean running = true;
+
+	/**
+	 * @param sonar Coverage already created, kept in memory.
+	 * @param output XML file updated by the daemon.
+	 * @param debounce Milliseconds a file must stay unchanged before it is read.
+	 * @param port Local port where the XML is served, or zero for none.
+	 */
+	public CoverageDaemon(SonarCoverage sonar, String output, long debounce, int port) {
+		this.sonar = sonar;
+		this.discovery = sonar.getDiscovery();
+		this.output = new File(output).getAbsoluteFile();
+		this.debounce = debounce;
+		this.port = port;
+	}
+
+	/**
+	 * Watches the profiler paths until the daemon is stopped.
+	 *
+	 * @throws IOException
+	 */
+	public void run() throws IOException {
+		this.watcher = FileSystems.getDefault().newWatchService();
+
+		try {
+			for (File root : discovery.getRoots()) {
+				if (root.isDirectory()) {
+					this.register(root.toPath());
+				} else {
+					// A single file is watched through its directory, that is not walked.
+					this.register(root.getAbsoluteFile().getParentFile().toPath(), 1);
+				}
+			}
+
+			// Files that arrived while the coverage was read are only seen now.
+			for (File file : discovery.find()) {
+				this.pend(file);
+			}
+
+			if (port > 0) {
+				this.serve();
+			}
+
+			System.out.println("** Watching the profiler files, updating \"" + output + "\" **");
+
+			while (running) {
+				WatchKey key = watcher.poll(Math.max(debounce, 100), TimeUnit.MILLISECONDS);
+
+				while (key != null) {
+					this.process(key);
+					key = watcher.poll();
+				}
+
+				this.flush();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// Stopped while waiting for the events.
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while watching the profiler files");
+		} finally {
+			this.stop();
+			sonar.close();
+		}
+	}
+
+	/**
+	 * Stops the daemon, closing the watcher and the local port.
+	 */
+	public void stop() {
+		running = false;
+
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			System.out.println("** Error closing the profiler watcher - Exception: " + e.getMessage());
+		}
+
+		if (server != null) {
+			try {
+				server.close();
+			} catch (IOException e) {
+				System.out.println("** Error closing the local port - Exception: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Registers the directory and, when the discovery is recursive, its subdirectories.
+	 */
+	private void register(Path directory) throws IOException {
+		this.register(directory, (discovery.isRecursive() ? Integer.MAX_VALUE : 1));
+	}
+
+	private void register(Path directory, int depth) throws IOException {
+		Files.walkFileTree(directory, EnumSet.of(FileVisitOption.FOLLOW_LINKS), depth, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				directories.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.out.println("** Error watching profiler directory \"" + file + "\" - Exception: " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Adds the files of the events to the pending ones.
+	 */
+	private void process(WatchKey key) throws IOException {
+		Path directory = directories.get(key);
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				// Some events were lost, so the whole discovery is run again.
+				for (File file : discovery.find()) {
+					this.pend(file);
+				}
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+			File file = path.toFile();
+
+			if (file.isDirectory()) {
+				if (discovery.isRecursive() && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					this.register(path);
+
+					// The files created before the directory was registered have no events.
+					for (File found : discovery.find()) {
+						if (found.toPath().startsWith(path)) {
+							this.pend(found);
+						}
+					}
+				}
+			} else if (discovery.accept(file)) {
+				this.pend(file);
+			}
+		}
+
+		if (!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	private void pend(File file) {
+		if (!pending.containsKey(file)) {
+			pending.put(file, new PendingFile(file));
+		}
+	}
+
+	/**
+	 * Reads the pending files that did not change for the debounce time,
+	 * rewriting the XML when any of them was read.
+	 */
+	private void flush() throws IOException {
+		List<File> ready = new ArrayList<File>();
+		long now = System.currentTimeMillis();
+
+		for (Iterator<PendingFile> it = pending.values().iterator(); it.hasNext();) {
+			PendingFile file = it.next();
+
+			if (!file.file.exists()) {
+				it.remove();
+			} else if (file.update(now)) {
+				ready.add(file.file);
+				it.remove();
+			}
+		}
+
+		if (ready.isEmpty()) {
+			return;
+		}
+
+		Collections.sort(ready);
+
+		int read = 0;
+
+		for (File file : ready) {
+			try {
+				if (sonar.addProfiler(file)) {
+					read++;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		if (read > 0) {
+			System.out.println("** " + read + " new profiler files read **");
+			this.write();
+		}
+	}
+
+	/**
+	 * Rewrites the XML. It is written to a temporary file in the same directory,
+	 * moved over it, so the readers never see a partial file.
+	 */
+	private void write() throws IOException {
+		sonar.createDataTest(output.getPath());
+
+		System.out.println("** Coverage updated in \"" + output + "\" **");
+	}
+
+	/**
+	 * Serves the XML on the local port. Each connection sends a command line:
+	 * "stop" stops the daemon, an HTTP GET receives the XML in an HTTP response
+	 * and anything else receives the XML as is.
+	 */
+	private void serve() throws IOException {
+		this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (running) {
+					try (Socket socket = server.accept()) {
+						socket.setSoTimeout(5000);
+						answer(socket);
+					} catch (IOException e) {
+						if (running) {
+							System.out.println("** Error serving the coverage - Exception: " + e.getMessage());
+						}
+					}
+				}
+			}
+		}, "coverage-server");
+
+		thread.setDaemon(true);
+		thread.start();
+
+		System.out.println("** Serving the coverage on port " + server.getLocalPort() + " **");
+	}
+
+	private void answer(Socket socket) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		String command = reader.readLine();
+		OutputStream out = socket.getOutputStream();
+
+		if (command != null && command.trim().equalsIgnoreCase("stop")) {
+			out.write("stopped\n".getBytes(StandardCharsets.US_ASCII));
+			out.flush();
+			this.stop();
+			return;
+		}
+
+		if (command != null && command.startsWith("GET ")) {
+			String type = (output.getName().endsWith(".gz") ? "application/gzip" : "application/xml");
+			out.write(("HTTP/1.0 200 OK\r\nContent-Type: " + type + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		}
+
+		// The XML is replaced, never rewritten, so the copy always sees a whole file.
+		Files.copy(output.toPath(), out);
+		out.flush();
+	}
+
+	/**
+	 * A file waiting to stay unchanged for the debounce time.
+	 */
+	private class PendingFile {
+		private File file;
+		private long size;
+		private long modified;
+		private long since;
+
+		PendingFile(File file) {
+			this.file = file;
+			this.size = file.length();
+			this.modified = file.lastModified();
+			this.since = System.currentTimeMillis();
+		}
+
+		/**
+		 * Updates the size and modification time of the file.
+		 *
+		 * @param now Current time.
+		 * @return If the file did not change for the debounce time.
+		 */
+		boolean update(long now) {
+			long size = file.length();
+			long modified = file.lastModified();
+
+			if (size != this.size || modified != this.modified) {
+				this.size = size;
+				this.modified = modified;
+				this.since = now;
+				return false;
+			}
+
+			return now - since >= debounce;
+		}
+	}
+}
@@ -0,0 +1,248 @@
+package com.oecoverage.coverage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the coverage of many modules in the same JVM, as an Ant build does,
+ * sharing the parsed profiler files and the read listings between the runs.
+ * A profiler file used by several modules is parsed once and merged into the
+ * coverage of each one, and a listing is read again only when it changes. Both
+ * caches are bounded, dropping the least recently used entries.
+ *
+ * The engine is thread-safe, so the modules may also run concurrently.
+ */
+public class CoverageEngine {
+	private Map<String, CachedProfiler> profilers = new LinkedHashMap<String, CachedProfiler>(16, 0.75f, true);
+	private Map<String, CachedListing> listings = new LinkedHashMap<String, CachedListing>(16, 0.75f, true);
+	private int profilerCacheSize = 256;
+	private int listingCacheSize = 1024;
+
+	/**
+	 * Creates the coverage of the profiler files and directories.
+	 *
+	 * @param profilers Profiler files or directories.
+	 * @param listingPath Path that contains the listing files.
+	 * @param sourcePath SONAR source path used in the coverage XML.
+	 * @param options Options used to read the profilers and generate the XML.
+	 * @return Coverage, from which the XML is created.
+	 * @throws IOException
+	 */
+	public SonarCoverage createCoverage(List<Path> profilers, Path listingPath, String sourcePath, CoverageOptions options) throws IOException {
+		StringBuilder roots = new StringBuilder();
+
+		for (Path profiler : profilers) {
+			if (roots.length() > 0) {
+				roots.append(File.pathSeparator);
+			}
+
+			roots.append(profiler.toString());
+		}
+
+		return new SonarCoverage(roots.toString(), listingPath.toString(), sourcePath, options, this);
+	}
+
+	/**
+	 * Creates the coverage of profiler outputs read from streams. Streams are
+	 * not kept in the profiler cache, as it can not tell when they change.
+	 *
+	 * @param profilers Profiler outputs by name, gzip compressed or not. They are closed after read.
+	 * @param listingPath Path that contains the listing files.
+	 * @param sourcePath SONAR source path used in the coverage XML.
+	 * @param options Options used to read the profilers and generate the XML.
+	 * @return Coverage, from which the XML is created.
+	 * @throws IOException
+	 */
+	public SonarCoverage createCoverage(Map<String, InputStream> profilers, Path listingPath, String sourcePath, CoverageOptions options) throws IOException {
+		SonarCoverage sonar = new SonarCoverage(null, listingPath.toString(), sourcePath, options, this);
+
+		for (Map.Entry<String, InputStream> profiler : profilers.entrySet()) {
+			sonar.addProfiler(profiler.getKey(), profiler.getValue());
+		}
+
+		return sonar;
+	}
+
+	/**
+	 * Creates the coverage XML of the profiler files and directories in memory.
+	 *
+	 * @param profilers Profiler files or directories.
+	 * @param listingPath Path that contains the listing files.
+	 * @param sourcePath SONAR source path used in the coverage XML.
+	 * @param options Options used to read the profilers and generate the XML.
+	 * @return Coverage XML, gzip compressed when the options say so.
+	 * @throws IOException
+	 */
+	public byte[] createDataTest(List<Path> profilers, Path listingPath, String sourcePath, CoverageOptions options) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		this.createCoverage(profilers, listingPath, sourcePath, options).createDataTest(output);
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * Maximum number of parsed profiler files kept, the least recently used are dropped first.
+	 */
+	public synchronized int getProfilerCacheSize() {
+		return profilerCacheSize;
+	}
+
+	public synchronized void setProfilerCacheSize(int profilerCacheSize) {
+		if (profilerCacheSize < 0) {
+			throw new IllegalArgumentException("Invalid profiler cache size: " + profilerCacheSize);
+		}
+		this.profilerCacheSize = profilerCacheSize;
+		evict(profilers, profilerCacheSize);
+	}
+
+	/**
+	 * Maximum number of read listings kept, the least recently used are dropped first.
+	 */
+	public synchronized int getListingCacheSize() {
+		return listingCacheSize;
+	}
+
+	public synchronized void setListingCacheSize(int listingCacheSize) {
+		if (listingCacheSize < 0) {
+			throw new IllegalArgumentException("Invalid listing cache size: " + listingCacheSize);
+		}
+		this.listingCacheSize = listingCacheSize;
+		evict(listings, listingCacheSize);
+	}
+
+	/**
+	 * Drops all the parsed profiler files and listings.
+	 */
+	public synchronized void clear() {
+		profilers.clear();
+		listings.clear();
+	}
+
+	/**
+	 * Merges the coverage of a profiler file into the target. The file is only
+	 * parsed when it was not parsed yet with the same settings or it changed since.
+	 *
+	 * @param target Coverage where the profiler is merged, whose timings, call graph and source filter are used.
+	 * @param input Profiler file or archive entry.
+	 * @param mapped If the file is memory mapped instead of read through a stream.
+	 * @return Number of profiler lines parsed, zero when the file was already parsed.
+	 * @throws IOException
+	 */
+	long readProfiler(ProfilerCoverage target, ProfilerInput input, boolean mapped) throws IOException {
+		File file = input.getFile().getAbsoluteFile();
+		String key = file.getPath() + "!" + input.getName() + "!" + target.isTimed() + "!" + target.isCallGraph()
+			+ "!" + (target.getSourceFilter() != null ? target.getSourceFilter().getScope() : "");
+		long size = file.length();
+		long modified = file.lastModified();
+
+		CachedProfiler cached;
+
+		synchronized (this) {
+			cached = profilers.get(key);
+		}
+
+		// The parsed coverage is never changed, so it is merged outside the lock.
+		if (cached != null && cached.size == size && cached.modified == modified) {
+			target.merge(cached.coverage);
+			return 0;
+		}
+
+		// Parsed outside the lock, a file parsed twice at the same time is only kept once.
+		CachedProfiler parsed = new CachedProfiler();
+		parsed.size = size;
+		parsed.modified = modified;
+		parsed.coverage = new ProfilerCoverage();
+		parsed.coverage.setSourceFilter(target.getSourceFilter());
+		parsed.coverage.setTimed(target.isTimed());
+		parsed.coverage.setCallGraph(target.isCallGraph());
+
+		long records = parsed.coverage.readProfiler(input, mapped);
+
+		synchronized (this) {
+			profilers.put(key, parsed);
+			evict(profilers, profilerCacheSize);
+		}
+
+		target.merge(parsed.coverage);
+
+		return records;
+	}
+
+	private static void evict(Map<String, ?> cache, int size) {
+		Iterator<?> it = cache.values().iterator();
+
+		while (cache.size() > size && it.hasNext()) {
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the listing already read for the source, or null when it was not
+	 * read yet or it changed since.
+	 *
+	 * @param source Source name, as found in the profiler.
+	 * @param file Listing file of the source.
+	 */
+	ListingFile getListing(String source, String file) {
+		CachedListing cached;
+
+		synchronized (this) {
+			cached = listings.get(file);
+		}
+
+		File listing = new File(file);
+
+		if (cached == null || !cached.source.equals(source) || cached.size != listing.length() || cached.modified != listing.lastModified()) {
+			return null;
+		}
+
+		return cached.listing;
+	}
+
+	/**
+	 * Keeps a listing read for the source.
+	 *
+	 * @param source Source name, as found in the profiler.
+	 * @param file Listing file of the source.
+	 * @param listing Listing read.
+	 */
+	void putListing(String source, String file, ListingFile listing) {
+		File read = new File(file);
+		CachedListing cached = new CachedListing();
+		cached.source = source;
+		cached.size = read.length();
+		cached.modified = read.lastModified();
+		cached.listing = listing;
+
+		synchronized (this) {
+			listings.put(file, cached);
+			evict(listings, listingCacheSize);
+		}
+	}
+
+	/**
+	 * A parsed profiler file and the size and modification time it had.
+	 */
+	private static class CachedProfiler {
+		private ProfilerCoverage coverage;
+		private long size;
+		private long modified;
+	}
+
+	/**
+	 * A listing read for a source and the size and modification time it had.
+	 */
+	private static class CachedListing {
+		private ListingFile listing;
+		private String source;
+		private long size;
+		private long modified;
+	}
+}
@@ -0,0 +1,277 @@
+package com.oecoverage.coverage;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and counters of each phase of a coverage run, written as a JSON report.
+ * The work is measured in units, usually one file or source, that add their wall
+ * time, CPU time, bytes and records to the phase. The counters are LongAdders, so
+ * they can be updated by the concurrent readers without contention.
+ */
+public class CoverageMetrics {
+	public static final String PROFILER = "profiler";
+	public static final String LISTING_INDEX = "listing-index";
+	public static final String LISTING_RESOLUTION = "listing-resolution";
+	public static final String LISTING = "listing";
+	public static final String XML = "xml";
+	public static final String MERGE = "merge";
+	// Whole generation of the coverage XML, including the listings resolution and reading.
+	public static final String REPORT = "report";
+
+	public static final String DROPPED_SOURCES = "dropped-sources";
+	public static final String FILTERED_SOURCES = "filtered-sources";
+	public static final String INVALID_LINES = "invalid-lines";
+	public static final String UNMAPPED_LINES = "unmapped-lines";
+	public static final String SOURCES = "sources";
+	public static final String INCLUDE_FILES = "include-files";
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+	private long started = System.nanoTime();
+	private Map<String, Phase> phases = new ConcurrentSkipListMap<String, Phase>();
+	private Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	// Summed by phase and file, so the files read again in watch mode do not grow the report.
+	private Map<String, FileMetrics> files = new LinkedHashMap<String, FileMetrics>();
+
+	public CoverageMetrics() {
+		// The counters of the dropped sources and lines are always reported, even when zero.
+		for (String counter : new String[] { SOURCES, INCLUDE_FILES, DROPPED_SOURCES, FILTERED_SOURCES, INVALID_LINES, UNMAPPED_LINES }) {
+			counters.put(counter, new LongAdder());
+		}
+	}
+
+	/**
+	 * Starts measuring a unit of work of the phase, in the current thread.
+	 *
+	 * @param phase Phase name.
+	 * @return Timer to be stopped when the work is done.
+	 */
+	public Timer start(String phase) {
+		return new Timer(this.getPhase(phase), false);
+	}
+
+	/**
+	 * Starts measuring the elapsed time of the whole phase, that may be shorter
+	 * than the time of its units when they run concurrently.
+	 *
+	 * @param phase Phase name.
+	 * @return Timer to be stopped when the phase ends.
+	 */
+	public Timer startPhase(String phase) {
+		return new Timer(this.getPhase(phase), true);
+	}
+
+	/**
+	 * Adds to a counter.
+	 *
+	 * @param counter Counter name.
+	 * @param value Value added.
+	 */
+	public void add(String counter, long value) {
+		LongAdder adder = counters.get(counter);
+
+		if (adder == null) {
+			counters.putIfAbsent(counter, new LongAdder());
+			adder = counters.get(counter);
+		}
+
+		adder.add(value);
+	}
+
+	/**
+	 * Current value of a counter.
+	 */
+	public long getCounter(String counter) {
+		LongAdder adder = counters.get(counter);
+		return (adder == null ? 0 : adder.sum());
+	}
+
+	private Phase getPhase(String name) {
+		Phase phase = phases.get(name);
+
+		if (phase == null) {
+			phases.putIfAbsent(name, new Phase(name));
+			phase = phases.get(name);
+		}
+
+		return phase;
+	}
+
+	/**
+	 * Writes the JSON report.
+	 *
+	 * @param output File where the report is written.
+	 * @throws IOException
+	 */
+	public void writeReport(String output) throws IOException {
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+			writer.write("{\n  \"wallNanos\": " + (System.nanoTime() - started) + ",\n  \"phases\": {");
+
+			String separator = "\n";
+
+			for (Map.Entry<String, Phase> entry : phases.entrySet()) {
+				Phase phase = entry.getValue();
+
+				writer.write(separator + "    " + quote(entry.getKey()) + ": {\"elapsedNanos\": " + phase.elapsed.sum()
+						+ ", \"wallNanos\": " + phase.wall.sum() + ", \"cpuNanos\": " + phase.cpu.sum()
+						+ ", \"units\": " + phase.units.sum() + ", \"bytes\": " + phase.bytes.sum() + ", \"records\": " + phase.records.sum() + "}");
+				separator = ",\n";
+			}
+
+			writer.write("\n  },\n  \"counters\": {");
+			separator = "\n";
+
+			for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+				writer.write(separator + "    " + quote(entry.getKey()) + ": " + entry.getValue().sum());
+				separator = ",\n";
+			}
+
+			writer.write("\n  },\n  \"files\": [");
+			separator = "\n";
+
+			synchronized (files) {
+				for (FileMetrics file : files.values()) {
+					writer.write(separator + "    {\"phase\": " + quote(file.phase) + ", \"file\": " + quote(file.file)
+							+ ", \"units\": " + file.units + ", \"wallNanos\": " + file.wall + ", \"cpuNanos\": " + file.cpu
+							+ ", \"bytes\": " + file.bytes + ", \"records\": " + file.records + "}");
+					separator = ",\n";
+				}
+			}
+
+			writer.write("\n  ]\n}\n");
+		}
+
+		System.out.println("** Run report written to \"" + output + "\" **");
+	}
+
+	private static String quote(String text) {
+		StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < ' ') {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+
+		return quoted.append('"').toString();
+	}
+
+	private static long getCpuTime() {
+		return (CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0);
+	}
+
+	/**
+	 * Measures a unit of work or a whole phase.
+	 */
+	public class Timer {
+		private Phase phase;
+		private boolean whole;
+		private long wall = System.nanoTime();
+		private long cpu = getCpuTime();
+
+		private Timer(Phase phase, boolean whole) {
+			this.phase = phase;
+			this.whole = whole;
+		}
+
+		/**
+		 * Stops the timer.
+		 */
+		public void stop() {
+			this.stop(null, 0, 0);
+		}
+
+		/**
+		 * Stops the timer of a unit of work.
+		 *
+		 * @param file File processed, also reported by itself, or null.
+		 * @param bytes Bytes read.
+		 * @param records Records read.
+		 */
+		public void stop(String file, long bytes, long records) {
+			long wall = System.nanoTime() - this.wall;
+
+			if (whole) {
+				phase.elapsed.add(wall);
+				return;
+			}
+
+			long cpu = getCpuTime() - this.cpu;
+
+			phase.wall.add(wall);
+			phase.cpu.add(cpu);
+			phase.units.increment();
+			phase.bytes.add(bytes);
+			phase.records.add(records);
+
+			if (file != null) {
+				String key = phase.name + '\n' + file;
+
+				synchronized (files) {
+					FileMetrics metrics = files.get(key);
+
+					if (metrics == null) {
+						metrics = new FileMetrics(phase.name, file);
+						files.put(key, metrics);
+					}
+
+					metrics.add(wall, cpu, bytes, records);
+				}
+			}
+		}
+	}
+
+	private static class Phase {
+		private String name;
+		private LongAdder elapsed = new LongAdder();
+		private LongAdder wall = new LongAdder();
+		private LongAdder cpu = new LongAdder();
+		private LongAdder units = new LongAdder();
+		private LongAdder bytes = new LongAdder();
+		private LongAdder records = new LongAdder();
+
+		Phase(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class FileMetrics {
+		private String phase;
+		private String file;
+		private long units;
+		private long wall;
+		private long cpu;
+		private long bytes;
+		private long records;
+
+		FileMetrics(String phase, String file) {
+			this.phase = phase;
+			this.file = file;
+		}
+
+		void add(long wall, long cpu, long bytes, long records) {
+			this.units++;
+			this.wall += wall;
+			this.cpu += cpu;
+			this.bytes += bytes;
+			this.records += records;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CoverageOptions {
+	private int workers = 1;
+	private boolean memoryMapped = false;
+	private boolean compressed = false;
+	private String listingCache = null;
+	private boolean listingIndex = false;
+	private boolean listingIndexParallel = false;
+	private String incremental = null;
+	private List<String> mergeReports = new ArrayList<String>();
+	private long listingCacheSize = 512L * 1024 * 1024;
+	private boolean listingCacheHash = false;
+	private String report = null;
+	private String hotspots = null;
+	private int hotspotsTop = 100;
+	private boolean recursive = false;
+	private boolean recursiveParallel = false;
+	private GlobFilter profilerFilter = new GlobFilter();
+	private SourceFilter sourceFilter = new SourceFilter();
+	private String changedFiles = null;
+	private String attribution = null;
+	private String affected = null;
+	private String snapshot = null;
+	private String callGraph = null;
+	private int callGraphTop = 10;
+	private String spill = null;
+	private long spillBudget = 256L * 1024 * 1024;
+	private int pipeline = 0;
+	private int pipelineQueue = 0;
+	private boolean pipelineVirtual = false;
+	private boolean watch = false;
+	private long watchDebounce = 2000;
+	private int watchPort = 0;
+
+	/**
+	 * Reads the "-name=value" options from the command line arguments.
+	 *
+	 * @param args Command line arguments.
+	 * @return Remaining positional arguments.
+	 */
+	public List<String> parse(String[] args) {
+		List<String> positional = new ArrayList<String>();
+
+		for (String arg : args) {
+			if (!arg.startsWith("-") || arg.length() == 1) {
+				positional.add(arg);
+				continue;
+			}
+
+			int pivor = arg.indexOf('=');
+			String name = (pivor == -1 ? arg.substring(1) : arg.substring(1, pivor));
+			String value = (pivor == -1 ? "" : arg.substring(pivor + 1));
+
+			this.setOption(name, value);
+		}
+
+		return positional;
+	}
+
+	/**
+	 * Sets an option using its command line name.
+	 *
+	 * @param name Option name, without the leading "-".
+	 * @param value Option value, empty for flags.
+	 */
+	public void setOption(String name, String value) {
+		switch (name) {
+			case "workers":
+				this.setWorkers(value.isEmpty() ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value));
+				break;
+			case "mmap":
+				this.setMemoryMapped(value.isEmpty() || Boolean.parseBoolean(value));
+				break;
+			case "gzip":
+				this.setCompressed(value.isEmpty() || Boolean.parseBoolean(value));
+				break;
+			case "listing-cache":
+				this.setListingCache(value);
+				break;
+			case "listing-cache-size":
+				this.setListingCacheSize(Long.parseLong(value) * 1024 * 1024);
+				break;
+			case "listing-cache-hash":
+				this.setListingCacheHash(value.isEmpty() || Boolean.parseBoolean(value));
+				break;
+			case "listing-index":
+				this.setListingIndex(!value.equalsIgnoreCase("false"));
+				this.setListingIndexParallel(value.equalsIgnoreCase("parallel"));
+				break;
+			case "incremental":
+				this.setIncremental(value);
+				break;
+			case "recursive":
+				this.setRecursive(!value.equalsIgnoreCase("false"));
+				this.setRecursiveParallel(value.equalsIgnoreCase("parallel"));
+				break;
+			case "profiler-include":
+				this.profilerFilter.include(value);
+				break;
+			case "profiler-exclude":
+				this.profilerFilter.exclude(value);
+				break;
+			case "source-include":
+				this.sourceFilter.include(value);
+				break;
+			case "source-exclude":
+				this.sourceFilter.exclude(value);
+				break;
+			case "changed-files":
+				this.setChangedFiles(value);
+				break;
+			case "attribution":
+				this.setAttribution(value);
+				break;
+			case "affected":
+				this.setAffected(value);
+				break;
+			case "callgraph":
+				this.setCallGraph(value);
+				break;
+			case "callgraph-top":
+				this.setCallGraphTop(Integer.parseInt(value));
+				break;
+			case "snapshot":
+				this.setSnapshot(value);
+				break;
+			case "spill":
+				this.setSpill(value);
+				break;
+			case "spill-budget":
+				this.setSpillBudget(Long.parseLong(value) * 1024 * 1024);
+				break;
+			case "pipeline":
+				this.setPipelineVirtual(value.equalsIgnoreCase("virtual"));
+				this.setPipeline(value.isEmpty() || pipelineVirtual ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(value));
+				break;
+			case "pipeline-queue":
+				this.setPipelineQueue(Integer.parseInt(value));
+				break;
+			case "watch":
+				this.setWatch(!value.equalsIgnoreCase("false"));
+				if (!value.isEmpty() && !value.equalsIgnoreCase("false")) {
+					this.setWatchDebounce(Long.parseLong(value));
+				}
+				break;
+			case "watch-port":
+				this.setWatchPort(Integer.parseInt(value));
+				break;
+			case "hotspots":
+				this.setHotspots(value);
+				break;
+			case "hotspots-top":
+				this.setHotspotsTop(Integer.parseInt(value));
+				break;
+			case "report":
+				this.setReport(value);
+				break;
+			case "merge":
+				for (String report : value.split(File.pathSeparator)) {
+					if (!report.isEmpty()) {
+						this.mergeReports.add(report);
+					}
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option \"-" + name + "\"");
+		}
+	}
+
+	/**
+	 * Number of profiler files parsed concurrently. One keeps the sequential reading.
+	 */
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("Invalid number of workers: " + workers);
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * If the profiler files are memory mapped instead of read through a stream.
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * If the profiler files in the subdirectories are also read.
+	 */
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	public void setRecursive(boolean recursive) {
+		this.recursive = recursive;
+	}
+
+	/**
+	 * If the profiler subdirectories are walked in parallel.
+	 */
+	public boolean isRecursiveParallel() {
+		return recursiveParallel;
+	}
+
+	public void setRecursiveParallel(boolean recursiveParallel) {
+		this.recursiveParallel = recursiveParallel;
+	}
+
+	/**
+	 * Include and exclude patterns of the profiler files, relative to their root.
+	 */
+	public GlobFilter getProfilerFilter() {
+		return profilerFilter;
+	}
+
+	public void setProfilerFilter(GlobFilter profilerFilter) {
+		this.profilerFilter = profilerFilter;
+	}
+
+	/**
+	 * Include and exclude patterns of the sources kept from the profiler files.
+	 */
+	public SourceFilter getSourceFilter() {
+		return sourceFilter;
+	}
+
+	public void setSourceFilter(SourceFilter sourceFilter) {
+		this.sourceFilter = sourceFilter;
+	}
+
+	/**
+	 * File with the changed paths, one per line, whose sources are the only
+	 * ones kept, or null to keep the sources of all the files.
+	 */
+	public String getChangedFiles() {
+		return changedFiles;
+	}
+
+	public void setChangedFiles(String changedFiles) {
+		this.changedFiles = (changedFiles == null || changedFiles.isEmpty() ? null : changedFiles);
+	}
+
+	/**
+	 * If the coverage XML is written gzip compressed.
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Directory of the persistent listing cache, or null when the listings are always read.
+	 */
+	public String getListingCache() {
+		return listingCache;
+	}
+
+	public void setListingCache(String listingCache) {
+		this.listingCache = (listingCache == null || listingCache.isEmpty() ? null : listingCache);
+	}
+
+	/**
+	 * Maximum size, in bytes, of the listing cache directory.
+	 */
+	public long getListingCacheSize() {
+		return listingCacheSize;
+	}
+
+	public void setListingCacheSize(long listingCacheSize) {
+		this.listingCacheSize = listingCacheSize;
+	}
+
+	/**
+	 * If the cached listings are also validated by their content hash.
+	 */
+	public boolean isListingCacheHash() {
+		return listingCacheHash;
+	}
+
+	public void setListingCacheHash(boolean listingCacheHash) {
+		this.listingCacheHash = listingCacheHash;
+	}
+
+	/**
+	 * If the listing path is walked once into an index instead of probing each listing file.
+	 */
+	public boolean isListingIndex() {
+		return listingIndex;
+	}
+
+	public void setListingIndex(boolean listingIndex) {
+		this.listingIndex = listingIndex;
+	}
+
+	/**
+	 * If the directories of the listing path are walked in parallel.
+	 */
+	public boolean isListingIndexParallel() {
+		return listingIndexParallel;
+	}
+
+	public void setListingIndexParallel(boolean listingIndexParallel) {
+		this.listingIndexParallel = listingIndexParallel;
+	}
+
+	/**
+	 * Directory of the incremental state, or null when all the profiler files are always read.
+	 */
+	public String getIncremental() {
+		return incremental;
+	}
+
+	public void setIncremental(String incremental) {
+		this.incremental = (incremental == null || incremental.isEmpty() ? null : incremental);
+	}
+
+	/**
+	 * JSON file where the timing and counters of the run are written, or null for none.
+	 */
+	public String getReport() {
+		return report;
+	}
+
+	public void setReport(String report) {
+		this.report = (report == null || report.isEmpty() ? null : report);
+	}
+
+	/**
+	 * CSV or JSON file where the lines with the highest time and execution count are written, or null for none.
+	 */
+	public String getHotspots() {
+		return hotspots;
+	}
+
+	public void setHotspots(String hotspots) {
+		this.hotspots = (hotspots == null || hotspots.isEmpty() ? null : hotspots);
+	}
+
+	/**
+	 * Number of lines written in each order of the hotspot report.
+	 */
+	public int getHotspotsTop() {
+		return hotspotsTop;
+	}
+
+	public void setHotspotsTop(int hotspotsTop) {
+		if (hotspotsTop < 1) {
+			throw new IllegalArgumentException("Invalid number of hotspots: " + hotspotsTop);
+		}
+		this.hotspotsTop = hotspotsTop;
+	}
+
+	/**
+	 * File where the index of the test sessions that covered each line is written, or null for none.
+	 */
+	public String getAttribution() {
+		return attribution;
+	}
+
+	public void setAttribution(String attribution) {
+		this.attribution = (attribution == null || attribution.isEmpty() ? null : attribution);
+	}
+
+	/**
+	 * File with the changed paths and lines whose affected test sessions are
+	 * queried from a test attribution index, or null for none.
+	 */
+	public String getAffected() {
+		return affected;
+	}
+
+	public void setAffected(String affected) {
+		this.affected = (affected == null || affected.isEmpty() ? null : affected);
+	}
+
+	/**
+	 * CSV or DOT file where the calls between the sources are written, or null for none.
+	 */
+	public String getCallGraph() {
+		return callGraph;
+	}
+
+	public void setCallGraph(String callGraph) {
+		this.callGraph = (callGraph == null || callGraph.isEmpty() ? null : callGraph);
+	}
+
+	/**
+	 * Number of heaviest call paths written with the call graph.
+	 */
+	public int getCallGraphTop() {
+		return callGraphTop;
+	}
+
+	public void setCallGraphTop(int callGraphTop) {
+		if (callGraphTop < 0) {
+			throw new IllegalArgumentException("Invalid number of call paths: " + callGraphTop);
+		}
+		this.callGraphTop = callGraphTop;
+	}
+
+	/**
+	 * File where the merged profiler coverage is written as a binary snapshot, or null for none.
+	 */
+	public String getSnapshot() {
+		return snapshot;
+	}
+
+	public void setSnapshot(String snapshot) {
+		this.snapshot = (snapshot == null || snapshot.isEmpty() ? null : snapshot);
+	}
+
+	/**
+	 * Directory where the coverage is spilled when it goes over the budget, or null to keep it in memory.
+	 */
+	public String getSpill() {
+		return spill;
+	}
+
+	public void setSpill(String spill) {
+		this.spill = (spill == null || spill.isEmpty() ? null : spill);
+	}
+
+	/**
+	 * Memory, in bytes, the coverage may use before it is spilled.
+	 */
+	public long getSpillBudget() {
+		return spillBudget;
+	}
+
+	public void setSpillBudget(long spillBudget) {
+		if (spillBudget < 0) {
+			throw new IllegalArgumentException("Invalid spill budget: " + spillBudget);
+		}
+		this.spillBudget = spillBudget;
+	}
+
+	/**
+	 * Number of workers mapping the sources while the XML is written, or zero to map them sequentially.
+	 */
+	public int getPipeline() {
+		return pipeline;
+	}
+
+	public void setPipeline(int pipeline) {
+		if (pipeline < 0) {
+			throw new IllegalArgumentException("Invalid number of pipeline workers: " + pipeline);
+		}
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * If the sources are mapped in virtual threads, when the Java runtime supports them.
+	 */
+	public boolean isPipelineVirtual() {
+		return pipelineVirtual;
+	}
+
+	public void setPipelineVirtual(boolean pipelineVirtual) {
+		this.pipelineVirtual = pipelineVirtual;
+	}
+
+	/**
+	 * Number of sources mapped ahead of the XML writer, by default four per pipeline worker.
+	 */
+	public int getPipelineQueue() {
+		return (pipelineQueue > 0 ? pipelineQueue : Math.max(1, pipeline * 4));
+	}
+
+	public void setPipelineQueue(int pipelineQueue) {
+		if (pipelineQueue < 1) {
+			throw new IllegalArgumentException("Invalid pipeline queue size: " + pipelineQueue);
+		}
+		this.pipelineQueue = pipelineQueue;
+	}
+
+	/**
+	 * If the profiler paths are watched after the XML is written, updating it as new profiler files arrive.
+	 */
+	public boolean isWatch() {
+		return watch;
+	}
+
+	public void setWatch(boolean watch) {
+		this.watch = watch;
+	}
+
+	/**
+	 * Milliseconds a new profiler file must stay unchanged before it is read in watch mode.
+	 */
+	public long getWatchDebounce() {
+		return watchDebounce;
+	}
+
+	public void setWatchDebounce(long watchDebounce) {
+		if (watchDebounce < 0) {
+			throw new IllegalArgumentException("Invalid watch debounce: " + watchDebounce);
+		}
+		this.watchDebounce = watchDebounce;
+	}
+
+	/**
+	 * Local port where the XML is served in watch mode, or zero for none.
+	 */
+	public int getWatchPort() {
+		return watchPort;
+	}
+
+	public void setWatchPort(int watchPort) {
+		if (watchPort < 0 || watchPort > 65535) {
+			throw new IllegalArgumentException("Invalid watch port: " + watchPort);
+		}
+		this.watchPort = watchPort;
+	}
+
+	/**
+	 * Existing coverage XML files merged into the generated one.
+	 */
+	public List<String> getMergeReports() {
+		return mergeReports;
+	}
+
+	public void setMergeReports(List<String> mergeReports) {
+		this.mergeReports = mergeReports;
+	}
+}
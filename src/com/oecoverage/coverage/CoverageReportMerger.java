@@ -0,0 +1,382 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges SONARQube Coverage XML files, a line is covered when any report covered
+ * it. The reports are read as runs of file elements sorted by path and the runs
+ * are merged like a k-way merge, so only one file element of each run is kept
+ * in memory.
+ *
+ * A sorted report is a single run, read straight from the report. An unsorted
+ * report, as the ones written before the XML was sorted, is split into its
+ * sorted runs, each one copied to a temporary run file in a single pass. At
+ * most {@link #MAX_RUNS} runs are merged at a time, the others are merged in
+ * previous passes into temporary run files, so the open files and the file
+ * elements kept in memory stay bounded however many runs there are.
+ */
+public class CoverageReportMerger {
+	private static final int MAX_RUNS = 256;
+
+	private List<File> temps = new ArrayList<File>();
+
+	/**
+	 * Merges the informed reports into a new one.
+	 *
+	 * @param reports Coverage XML files to be merged.
+	 * @param output Absolute file name where the merged XML will be created.
+	 * @param compressed If the merged XML must be written gzip compressed.
+	 * @throws IOException
+	 */
+	public void merge(List<String> reports, String output, boolean compressed) throws IOException {
+		List<Cursor> cursors = new ArrayList<Cursor>();
+
+		try {
+			for (String report : reports) {
+				System.out.println("** Reading coverage report \"" + report + "\" **");
+
+				if (this.isSorted(report)) {
+					cursors.add(new ReportCursor(report));
+				} else {
+					this.splitRuns(report, cursors);
+				}
+			}
+
+			while (cursors.size() > MAX_RUNS) {
+				cursors = this.mergePass(cursors);
+			}
+
+			this.write(cursors, output, compressed);
+		} finally {
+			for (Cursor cursor : cursors) {
+				cursor.close();
+			}
+
+			for (File temp : temps) {
+				temp.delete();
+			}
+
+			temps.clear();
+		}
+	}
+
+	/**
+	 * Writes the merged runs to the XML, through a temporary file in the same
+	 * directory moved over the output only when the whole XML was written.
+	 */
+	private void write(List<Cursor> cursors, String output, boolean compressed) throws IOException {
+		File target = new File(output).getAbsoluteFile();
+		File temp = File.createTempFile("merged", ".tmp", target.getParentFile());
+
+		try {
+			final CoverageXmlWriter writer = new CoverageXmlWriter(temp.getPath(), compressed);
+			boolean whole = false;
+
+			try {
+				this.mergeRuns(cursors, new Sink() {
+					@Override
+					public void write(String path, LineCoverage lines) throws IOException {
+						writer.writeFile(path, lines);
+					}
+				});
+				whole = true;
+			} finally {
+				if (whole) {
+					writer.close();
+				} else {
+					writer.abort();
+				}
+			}
+
+			try {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Merges each group of {@link #MAX_RUNS} runs into a temporary run file.
+	 *
+	 * @param cursors Runs to be merged.
+	 * @return Runs left, one for each group.
+	 */
+	private List<Cursor> mergePass(List<Cursor> cursors) throws IOException {
+		List<Cursor> merged = new ArrayList<Cursor>();
+
+		for (int i = 0; i < cursors.size(); i += MAX_RUNS) {
+			List<Cursor> group = cursors.subList(i, Math.min(i + MAX_RUNS, cursors.size()));
+
+			if (group.size() == 1) {
+				merged.add(group.get(0));
+				continue;
+			}
+
+			final RunWriter run = new RunWriter(this.createTemp());
+
+			try {
+				this.mergeRuns(group, new Sink() {
+					@Override
+					public void write(String path, LineCoverage lines) throws IOException {
+						run.write(path, lines);
+					}
+				});
+			} finally {
+				run.close();
+
+				// The merged runs are done, so their files are closed before the next group is opened.
+				for (Cursor cursor : group) {
+					cursor.close();
+				}
+			}
+
+			merged.add(new RunCursor(run.file));
+		}
+
+		System.out.println("** " + cursors.size() + " coverage runs merged into " + merged.size() + " **");
+
+		return merged;
+	}
+
+	private void mergeRuns(List<Cursor> cursors, Sink sink) throws IOException {
+		PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(Math.max(1, cursors.size()), new Comparator<Cursor>() {
+			@Override
+			public int compare(Cursor a, Cursor b) {
+				return a.getPath().compareTo(b.getPath());
+			}
+		});
+		LineCoverage merged = new LineCoverage();
+
+		for (Cursor cursor : cursors) {
+			if (cursor.next()) {
+				queue.add(cursor);
+			}
+		}
+
+		while (!queue.isEmpty()) {
+			String path = queue.peek().getPath();
+			merged.clear();
+
+			while (!queue.isEmpty() && queue.peek().getPath().equals(path)) {
+				Cursor cursor = queue.poll();
+				merged.merge(cursor.getLines());
+
+				if (cursor.next()) {
+					queue.add(cursor);
+				}
+			}
+
+			sink.write(path, merged);
+		}
+	}
+
+	/**
+	 * If the file elements of the report are sorted by path, so it is a single run.
+	 */
+	private boolean isSorted(String report) throws IOException {
+		String previous = null;
+
+		try (CoverageReportReader reader = new CoverageReportReader(report)) {
+			while (reader.next()) {
+				if (previous != null && reader.getPath().compareTo(previous) < 0) {
+					return false;
+				}
+
+				previous = reader.getPath();
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copies each run of file elements sorted by path of the report to its own
+	 * temporary run file, reading the report once.
+	 */
+	private void splitRuns(String report, List<Cursor> cursors) throws IOException {
+		String previous = null;
+		RunWriter run = null;
+		int count = 0;
+
+		try (CoverageReportReader reader = new CoverageReportReader(report)) {
+			while (reader.next()) {
+				if (run == null || reader.getPath().compareTo(previous) < 0) {
+					if (run != null) {
+						run.close();
+					}
+
+					run = new RunWriter(this.createTemp());
+					cursors.add(new RunCursor(run.file));
+					count++;
+				}
+
+				run.write(reader.getPath(), reader.getLines());
+				previous = reader.getPath();
+			}
+		} finally {
+			if (run != null) {
+				run.close();
+			}
+		}
+
+		System.out.println("** Unsorted coverage report \"" + report + "\" split into " + count + " runs **");
+	}
+
+	private File createTemp() throws IOException {
+		File temp = File.createTempFile("merge", ".run");
+		temps.add(temp);
+
+		return temp;
+	}
+
+	/**
+	 * Receives the merged file elements, in the order of their paths.
+	 */
+	private interface Sink {
+		void write(String path, LineCoverage lines) throws IOException;
+	}
+
+	private interface Cursor extends Closeable {
+		boolean next() throws IOException;
+
+		String getPath();
+
+		LineCoverage getLines();
+	}
+
+	/**
+	 * Reads a sorted report. It is only opened when the first element is read,
+	 * so the runs waiting for a later pass do not keep their files open.
+	 */
+	private static class ReportCursor implements Cursor {
+		private String report;
+		private CoverageReportReader reader;
+		private boolean closed = false;
+
+		ReportCursor(String report) {
+			this.report = report;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (reader == null) {
+				reader = new CoverageReportReader(report);
+			}
+
+			return reader.next();
+		}
+
+		@Override
+		public String getPath() {
+			return reader.getPath();
+		}
+
+		@Override
+		public LineCoverage getLines() {
+			return reader.getLines();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (reader != null && !closed) {
+				closed = true;
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the sorted file elements of a temporary run file.
+	 */
+	private static class RunWriter implements Closeable {
+		private File file;
+		private DataOutputStream output;
+
+		RunWriter(File file) throws IOException {
+			this.file = file;
+			this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		}
+
+		void write(String path, LineCoverage lines) throws IOException {
+			output.writeBoolean(true);
+			output.writeUTF(path);
+			lines.write(output);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				output.writeBoolean(false);
+			} finally {
+				output.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the file elements of a temporary run file. It is only opened when
+	 * the first element is read.
+	 */
+	private static class RunCursor implements Cursor {
+		private File file;
+		private DataInputStream input;
+		private boolean closed = false;
+		private String path;
+		private LineCoverage lines;
+
+		RunCursor(File file) {
+			this.file = file;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (input == null) {
+				input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+			}
+
+			if (!input.readBoolean()) {
+				return false;
+			}
+
+			path = input.readUTF();
+			lines = LineCoverage.read(input);
+
+			return true;
+		}
+
+		@Override
+		public String getPath() {
+			return path;
+		}
+
+		@Override
+		public LineCoverage getLines() {
+			return lines;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (input != null && !closed) {
+				closed = true;
+				input.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader of a SONARQube Coverage XML file. Only the current file
+ * element is kept in memory.
+ */
+public class CoverageReportReader implements Closeable {
+	private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+	
+	static {
+		FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+	
+	private String report;
+	private InputStream input;
+	private XMLStreamReader reader;
+	
+	private String path;
+	private LineCoverage lines = new LineCoverage();
+
+	/**
+	 * Opens the coverage report, plain or gzip compressed.
+	 * 
+	 * @param report Coverage XML file name.
+	 * @throws IOException
+	 */
+	public CoverageReportReader(String report) throws IOException {
+		this.report = report;
+		this.input = new BufferedInputStream(new FileInputStream(report));
+		
+		try {
+			this.input.mark(2);
+			boolean compressed = (input.read() == 0x1F && input.read() == 0x8B);
+			this.input.reset();
+			
+			if (compressed) {
+				this.input = new GZIPInputStream(this.input, 64 * 1024);
+			}
+			
+			this.reader = FACTORY.createXMLStreamReader(this.input);
+			this.reader.nextTag();
+			
+			if (!"coverage".equals(reader.getLocalName()) || !"1".equals(reader.getAttributeValue(null, "version"))) {
+				throw new IOException("File \"" + report + "\" is not a version 1 coverage report");
+			}
+		} catch (XMLStreamException e) {
+			this.close();
+			throw new IOException("Invalid coverage report \"" + report + "\"", e);
+		} catch (IOException e) {
+			this.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads the next file element of the report.
+	 * 
+	 * @return false when there are no more file elements.
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		try {
+			while (reader.hasNext()) {
+				if (reader.next() == XMLStreamConstants.START_ELEMENT && "file".equals(reader.getLocalName())) {
+					this.readFile();
+					return true;
+				}
+			}
+			
+			return false;
+		} catch (XMLStreamException | RuntimeException e) {
+			throw new IOException("Invalid coverage report \"" + report + "\"", e);
+		}
+	}
+
+	/**
+	 * Path of the current file element.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * Lines of the current file element. The same object is reused by all elements.
+	 */
+	public LineCoverage getLines() {
+		return lines;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (reader != null) {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		} finally {
+			input.close();
+		}
+	}
+
+	private void readFile() throws XMLStreamException {
+		path = reader.getAttributeValue(null, "path");
+		lines.clear();
+		
+		if (path == null) {
+			throw new XMLStreamException("File element without path", reader.getLocation());
+		}
+		
+		int depth = 1;
+		
+		while (depth > 0) {
+			int event = reader.next();
+			
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				
+				if ("lineToCover".equals(reader.getLocalName())) {
+					int lineNumber = Integer.parseInt(reader.getAttributeValue(null, "lineNumber").trim());
+					boolean covered = Boolean.parseBoolean(reader.getAttributeValue(null, "covered").trim());
+					
+					lines.add(lineNumber, covered);
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.oecoverage.coverage;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary snapshot of a merged profiler coverage, much smaller and faster to
+ * read than the profiler outputs or the XML. It holds a table of the source
+ * names, followed by the executable and covered lines of each source, each
+ * set of lines written as words or as runs of consecutive lines, whichever is
+ * smaller, and by the timings of the sources and the calls between them, when
+ * they were kept.
+ *
+ * Snapshots are read as profiler inputs, so the coverage of several shards is
+ * merged by reading their snapshots together.
+ */
+public class CoverageSnapshot {
+	/**
+	 * First bytes of a snapshot, "OECS".
+	 */
+	public static final int SNAPSHOT_MAGIC = 0x4F454353;
+
+	/**
+	 * Extension of the snapshot files.
+	 */
+	public static final String SNAPSHOT_EXTENSION = ".oecov";
+
+	private static final int SNAPSHOT_VERSION = 2;
+
+	/**
+	 * Writes the snapshot to a file, gzip compressed when its name ends with
+	 * ".gz". It is written to a temporary file first, so a partial snapshot is
+	 * never read.
+	 *
+	 * @param coverage Coverage to be written.
+	 * @param file Snapshot file.
+	 * @throws IOException
+	 */
+	public static void save(ProfilerCoverage coverage, String file) throws IOException {
+		File target = new File(file).getAbsoluteFile();
+		File temp = File.createTempFile("snapshot", ".tmp", target.getParentFile());
+
+		try {
+			OutputStream stream = new FileOutputStream(temp);
+
+			if (file.endsWith(".gz")) {
+				stream = new GZIPOutputStream(stream, 64 * 1024);
+			}
+
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+				write(coverage, output);
+			}
+
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+
+		System.out.println("** Coverage snapshot written to \"" + file + "\" **");
+	}
+
+	/**
+	 * Writes the snapshot of the coverage.
+	 *
+	 * @param coverage Coverage to be written.
+	 * @param output Output where the snapshot is written.
+	 * @throws IOException
+	 */
+	public static void write(ProfilerCoverage coverage, DataOutput output) throws IOException {
+		Set<String> sources = coverage.getSources();
+		Set<String> timed = coverage.getTimedSources();
+		Set<String> names = new TreeSet<String>(sources);
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+
+		names.addAll(timed);
+
+		if (coverage.getCallGraph() != null) {
+			names.addAll(coverage.getCallGraph().getSources());
+		}
+
+		output.writeInt(SNAPSHOT_MAGIC);
+		output.writeInt(SNAPSHOT_VERSION);
+
+		LineCoverage.writeVarInt(output, names.size());
+
+		for (String name : names) {
+			ids.put(name, ids.size());
+			output.writeUTF(name);
+		}
+
+		LineCoverage.writeVarInt(output, sources.size());
+
+		for (String name : sources) {
+			LineCoverage.writeVarInt(output, ids.get(name));
+			coverage.getCoverage(name).write(output);
+		}
+
+		LineCoverage.writeVarInt(output, timed.size());
+
+		for (String name : timed) {
+			LineCoverage.writeVarInt(output, ids.get(name));
+			coverage.getTimings(name).write(output);
+		}
+
+		if (coverage.getCallGraph() != null) {
+			coverage.getCallGraph().write(output, ids);
+		} else {
+			LineCoverage.writeVarInt(output, 0);
+		}
+	}
+
+	/**
+	 * Reads a snapshot, merging it into the informed coverage. The timings and
+	 * calls are only merged when the coverage keeps them.
+	 *
+	 * @param input Input positioned at the start of the snapshot.
+	 * @param coverage Coverage where the snapshot is merged.
+	 * @return Number of sources read.
+	 * @throws IOException
+	 */
+	public static long read(DataInput input, ProfilerCoverage coverage) throws IOException {
+		if (input.readInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("Not a coverage snapshot");
+		}
+
+		int version = input.readInt();
+
+		// Version 1 had no call graph.
+		if (version != 1 && version != SNAPSHOT_VERSION) {
+			throw new IOException("Unsupported coverage snapshot version: " + version);
+		}
+
+		List<String> names = new ArrayList<String>();
+		int count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			names.add(input.readUTF());
+		}
+
+		count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			coverage.add(getName(names, LineCoverage.readVarInt(input)), LineCoverage.read(input), null);
+		}
+
+		count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			coverage.add(getName(names, LineCoverage.readVarInt(input)), null, LineTimings.read(input));
+		}
+
+		if (version > 1) {
+			CallGraph calls = new CallGraph();
+			calls.read(input, names);
+
+			if (coverage.getCallGraph() != null) {
+				coverage.getCallGraph().merge(calls);
+			}
+		}
+
+		return names.size();
+	}
+
+	private static String getName(List<String> names, int id) throws IOException {
+		if (id < 0 || id >= names.size()) {
+			throw new IOException("Invalid source id in coverage snapshot: " + id);
+		}
+
+		return names.get(id);
+	}
+}
@@ -0,0 +1,382 @@
+package com.oecoverage.coverage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Coverage moved from the memory to run files on disk, when the coverage read
+ * goes over its memory budget. Each run holds the sources in alphabetical
+ * order, with an in-memory index of the position of each source, so the
+ * coverage of a source is read back by merging its records from all the runs.
+ *
+ * Each run keeps its file open to be read, so whenever there are more than
+ * {@link #MAX_RUNS} runs they are compacted into a single one, merging the
+ * records of each source. The run files are removed by {@link #close()}.
+ */
+public class CoverageSpill {
+	private static final int FLAG_COVERAGE = 1;
+	private static final int FLAG_TIMINGS = 2;
+	private static final int MAX_RUNS = 64;
+
+	private File directory;
+	private long budget;
+	private List<Run> runs = new ArrayList<Run>();
+	private boolean closed = false;
+
+	/**
+	 * @param directory Directory where the run files are written.
+	 * @param budget Memory, in bytes, the coverage may use before it is moved to a run.
+	 * @throws IOException
+	 */
+	public CoverageSpill(String directory, long budget) throws IOException {
+		File parent = new File(directory);
+
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new RuntimeException("Could not create the spill directory \"" + directory + "\"");
+		}
+
+		this.directory = Files.createTempDirectory(parent.toPath(), "spill").toFile();
+		this.budget = budget;
+	}
+
+	/**
+	 * Memory, in bytes, the coverage may use before it is moved to a run.
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Number of runs written until now.
+	 */
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+
+	/**
+	 * Starts a new run. The sources must be added in alphabetical order.
+	 *
+	 * @return Writer of the run.
+	 * @throws IOException
+	 */
+	RunWriter startRun() throws IOException {
+		return new RunWriter(this.createRunFile());
+	}
+
+	private synchronized File createRunFile() {
+		this.checkOpen();
+		return new File(directory, "run" + runs.size() + "-" + System.nanoTime() + ".bin");
+	}
+
+	/**
+	 * Returns the names of the spilled sources with executable lines.
+	 */
+	Set<String> getSources() {
+		return this.getSources(FLAG_COVERAGE);
+	}
+
+	/**
+	 * Returns the names of the spilled sources with timings.
+	 */
+	Set<String> getTimedSources() {
+		return this.getSources(FLAG_TIMINGS);
+	}
+
+	private Set<String> getSources(int flag) {
+		Set<String> found = new TreeSet<String>();
+
+		for (Run run : this.getRuns()) {
+			for (int i = 0; i < run.names.length; i++) {
+				if ((run.flags[i] & flag) != 0) {
+					found.add(run.names[i]);
+				}
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Merges the spilled coverage and timings of the source into the informed ones.
+	 *
+	 * @param source Source name.
+	 * @param coverage Coverage where the spilled lines are merged, or null.
+	 * @param timings Timings where the spilled ones are merged, or null.
+	 * @return If any of the informed coverage or timings was found in the runs.
+	 * @throws IOException
+	 */
+	boolean read(String source, LineCoverage coverage, LineTimings timings) throws IOException {
+		return this.read(this.getRuns(), source, coverage, timings);
+	}
+
+	private boolean read(List<Run> runs, String source, LineCoverage coverage, LineTimings timings) throws IOException {
+		int wanted = (coverage != null ? FLAG_COVERAGE : 0) | (timings != null ? FLAG_TIMINGS : 0);
+		boolean found = false;
+
+		for (Run run : runs) {
+			int i = Arrays.binarySearch(run.names, source);
+
+			if (i < 0 || (run.flags[i] & wanted) == 0) {
+				continue;
+			}
+
+			found = true;
+
+			ByteBuffer buffer = ByteBuffer.allocate(run.lengths[i]);
+
+			// Positional reads, so the sources are read concurrently by the pipeline workers.
+			while (buffer.hasRemaining()) {
+				if (run.channel.read(buffer, run.offsets[i] + buffer.position()) < 0) {
+					throw new EOFException("Truncated spill run \"" + run.file + "\"");
+				}
+			}
+
+			DataInputStream input = new DataInputStream(new ByteArrayInputStream(buffer.array()));
+
+			if ((run.flags[i] & FLAG_COVERAGE) != 0) {
+				LineCoverage lines = LineCoverage.read(input);
+
+				if (coverage != null) {
+					coverage.merge(lines);
+				}
+			}
+
+			if ((run.flags[i] & FLAG_TIMINGS) != 0 && timings != null) {
+				timings.merge(LineTimings.read(input));
+			}
+		}
+
+		return found;
+	}
+
+	private synchronized List<Run> getRuns() {
+		this.checkOpen();
+		return new ArrayList<Run>(runs);
+	}
+
+	private synchronized void addRun(Run run) throws IOException {
+		this.checkOpen();
+		runs.add(run);
+
+		if (runs.size() > MAX_RUNS) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * Merges all the runs into a single one, reading one source at a time. The
+	 * runs are only compacted while the coverage is read, before any source is
+	 * read back, so no reader is using the runs removed.
+	 */
+	private void compact() throws IOException {
+		List<Run> merged = new ArrayList<Run>(runs);
+		Set<String> names = new TreeSet<String>();
+
+		for (Run run : merged) {
+			names.addAll(Arrays.asList(run.names));
+		}
+
+		RunWriter writer = new RunWriter(new File(directory, "run" + runs.size() + "-" + System.nanoTime() + ".bin"));
+
+		Run run;
+
+		try {
+			for (String name : names) {
+				int flag = 0;
+
+				for (Run found : merged) {
+					int i = Arrays.binarySearch(found.names, name);
+					flag |= (i >= 0 ? found.flags[i] : 0);
+				}
+
+				LineCoverage coverage = ((flag & FLAG_COVERAGE) != 0 ? new LineCoverage() : null);
+				LineTimings timings = ((flag & FLAG_TIMINGS) != 0 ? new LineTimings() : null);
+
+				this.read(merged, name, coverage, timings);
+				writer.add(name, coverage, timings);
+			}
+
+			run = writer.close();
+		} catch (IOException e) {
+			writer.output.close();
+			writer.file.delete();
+			throw e;
+		}
+
+		for (Run old : merged) {
+			old.delete();
+		}
+
+		runs.removeAll(merged);
+		runs.add(run);
+
+		System.out.println("** " + merged.size() + " spill runs compacted into \"" + run.file + "\" **");
+	}
+
+	/**
+	 * Closes and removes the run files. The spilled coverage can not be read after.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		IOException failure = null;
+
+		// The other runs are still removed when one of them fails.
+		for (Run run : runs) {
+			try {
+				run.delete();
+			} catch (IOException e) {
+				failure = (failure != null ? failure : e);
+			}
+		}
+
+		runs.clear();
+		directory.delete();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("The spilled coverage in \"" + directory + "\" was already removed");
+		}
+	}
+
+	/**
+	 * Writes the sources of a run, keeping the position of each one for the index.
+	 */
+	class RunWriter {
+		private File file;
+		private OutputStream output;
+		private ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private List<String> names = new ArrayList<String>();
+		private List<Long> offsets = new ArrayList<Long>();
+		private List<Integer> lengths = new ArrayList<Integer>();
+		private List<Integer> flags = new ArrayList<Integer>();
+		private long position = 0;
+
+		RunWriter(File file) throws IOException {
+			this.file = file;
+			this.output = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		}
+
+		/**
+		 * Adds a source, after the sources before it in alphabetical order.
+		 *
+		 * @param source Source name.
+		 * @param coverage Coverage of the source, or null.
+		 * @param timings Timings of the source, or null.
+		 * @throws IOException
+		 */
+		void add(String source, LineCoverage coverage, LineTimings timings) throws IOException {
+			DataOutputStream data = new DataOutputStream(record);
+			int flag = 0;
+
+			record.reset();
+
+			if (coverage != null) {
+				coverage.write(data);
+				flag |= FLAG_COVERAGE;
+			}
+
+			if (timings != null) {
+				timings.write(data);
+				flag |= FLAG_TIMINGS;
+			}
+
+			data.flush();
+			record.writeTo(output);
+
+			names.add(source);
+			offsets.add(position);
+			lengths.add(record.size());
+			flags.add(flag);
+
+			position += record.size();
+		}
+
+		/**
+		 * Closes the run file, making its sources visible to the readers.
+		 *
+		 * @throws IOException
+		 */
+		void finish() throws IOException {
+			Run run = this.close();
+
+			addRun(run);
+
+			System.out.println("** Coverage of " + run.names.length + " sources spilled to \"" + file + "\" **");
+		}
+
+		/**
+		 * Closes the run file, opening it to be read.
+		 */
+		private Run close() throws IOException {
+			output.close();
+
+			Run run = new Run();
+			run.file = file;
+			run.names = names.toArray(new String[names.size()]);
+			run.offsets = new long[names.size()];
+			run.lengths = new int[names.size()];
+			run.flags = new byte[names.size()];
+
+			for (int i = 0; i < run.names.length; i++) {
+				run.offsets[i] = offsets.get(i);
+				run.lengths[i] = lengths.get(i);
+				run.flags[i] = flags.get(i).byteValue();
+			}
+
+			run.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+			return run;
+		}
+	}
+
+	/**
+	 * A run file and the index of its sources, sorted by name.
+	 */
+	private static class Run {
+		private File file;
+		private FileChannel channel;
+		private String[] names;
+		private long[] offsets;
+		private int[] lengths;
+		private byte[] flags;
+
+		/**
+		 * Closes and removes the run file.
+		 */
+		void delete() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				file.delete();
+			}
+		}
+	}
+}
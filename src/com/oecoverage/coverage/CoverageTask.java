@@ -0,0 +1,162 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Ant task that creates the coverage XML in the JVM of the build, instead of
+ * forking "java -jar" for each module. The parsed profiler files and listings
+ * are kept in an engine shared by all the executions of the task loaded by the
+ * same class loader, so a profiler file used by several modules is parsed once.
+ *
+ * {@code
+ * <taskdef name="oe-coverage" classname="com.oecoverage.coverage.CoverageTask" classpath="oe-coverage.jar" loaderref="oe-coverage" />
+ * <oe-coverage profilers="profiler" listingPath="listing" output="coverage.xml" sourcePath="src/">
+ *     <option name="workers" value="4" />
+ * </oe-coverage>
+ * }
+ */
+public class CoverageTask extends Task {
+	private static final CoverageEngine SHARED_ENGINE = new CoverageEngine();
+
+	private org.apache.tools.ant.types.Path profilers;
+	private File listingPath;
+	private File output;
+	private String sourcePath = "";
+	private boolean shared = true;
+	private List<Option> options = new ArrayList<Option>();
+
+	/**
+	 * Profiler files or directories, separated by the path separator.
+	 */
+	public void setProfilers(org.apache.tools.ant.types.Path profilers) {
+		this.createProfilers().append(profilers);
+	}
+
+	/**
+	 * Nested profiler files or directories, as any Ant path.
+	 */
+	public org.apache.tools.ant.types.Path createProfilers() {
+		if (profilers == null) {
+			profilers = new org.apache.tools.ant.types.Path(this.getProject());
+		}
+		return profilers;
+	}
+
+	/**
+	 * Path that contains the listing files. Without it, only the snapshot of the profilers is written.
+	 */
+	public void setListingPath(File listingPath) {
+		this.listingPath = listingPath;
+	}
+
+	/**
+	 * Coverage XML file.
+	 */
+	public void setOutput(File output) {
+		this.output = output;
+	}
+
+	/**
+	 * SONAR source path used in the coverage XML.
+	 */
+	public void setSourcePath(String sourcePath) {
+		this.sourcePath = sourcePath;
+	}
+
+	/**
+	 * If the parsed profiler files and listings are shared with the other
+	 * executions of the task. Default: true.
+	 */
+	public void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	/**
+	 * Nested option, with the name and value of the command line option.
+	 */
+	public Option createOption() {
+		Option option = new Option();
+		options.add(option);
+		return option;
+	}
+
+	@Override
+	public void execute() throws BuildException {
+		CoverageOptions coverage = new CoverageOptions();
+
+		try {
+			for (Option option : options) {
+				if (option.name == null) {
+					throw new BuildException("Option without name", this.getLocation());
+				}
+
+				coverage.setOption(option.name, (option.value != null ? option.value : ""));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new BuildException(e.getMessage(), e, this.getLocation());
+		}
+
+		if (coverage.isWatch()) {
+			throw new BuildException("The watch mode is not supported by the task", this.getLocation());
+		}
+
+		if (profilers == null || profilers.size() == 0) {
+			throw new BuildException("No profiler files informed", this.getLocation());
+		}
+
+		if (listingPath == null && coverage.getSnapshot() == null) {
+			throw new BuildException("The listing path or the snapshot option must be informed", this.getLocation());
+		}
+
+		if (listingPath != null && output == null) {
+			throw new BuildException("The output file must be informed", this.getLocation());
+		}
+
+		CoverageEngine engine = (shared ? SHARED_ENGINE : new CoverageEngine());
+		List<Path> roots = new ArrayList<Path>();
+
+		for (String profiler : profilers.list()) {
+			roots.add(Paths.get(profiler));
+		}
+
+		try {
+			if (listingPath == null) {
+				SonarCoverage sonar = new SonarCoverage(profilers.toString(), null, "", coverage, engine);
+
+				try {
+					sonar.writeSnapshot(coverage.getSnapshot());
+				} finally {
+					sonar.close();
+				}
+			} else {
+				engine.createCoverage(roots, listingPath.toPath(), sourcePath, coverage).createDataTest(output.getPath());
+			}
+		} catch (IOException e) {
+			throw new BuildException("Error creating the coverage: " + e.getMessage(), e, this.getLocation());
+		} catch (RuntimeException e) {
+			throw new BuildException("Error creating the coverage: " + e.getMessage(), e, this.getLocation());
+		}
+	}
+
+	/**
+	 * A command line option, without the leading "-".
+	 */
+	public static class Option {
+		private String name;
+		private String value;
+
+		public void setName(String name) {
+			this.name = name;
+		}
+
+		public void setValue(String value) {
+			this.value = value;
+		}
+	}
+}
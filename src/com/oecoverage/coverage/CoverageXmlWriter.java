@@ -0,0 +1,176 @@
+package com.oecoverage.coverage;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class CoverageXmlWriter implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
+	private final Writer writer;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private final char[] number = new char[11];
+	private int count = 0;
+
+	/**
+	 * Creates the SONARQube Coverage XML file and writes the coverage root element.
+	 * 
+	 * @param output Absolute file name where the XML will be created.
+	 * @param compressed If the file must be written gzip compressed.
+	 * @throws IOException
+	 */
+	public CoverageXmlWriter(String output, boolean compressed) throws IOException {
+		this(compressed ? new GZIPOutputStream(new FileOutputStream(output), BUFFER_SIZE) : new FileOutputStream(output));
+	}
+
+	/**
+	 * Writes the SONARQube Coverage XML into the informed stream, starting by the
+	 * coverage root element.
+	 * 
+	 * @param output Stream where the XML will be written. It is closed with the writer.
+	 * @throws IOException
+	 */
+	public CoverageXmlWriter(OutputStream output) throws IOException {
+		this.writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+		this.append("<coverage version=\"1\">\n");
+	}
+
+	/**
+	 * Writes a file element with all its lines to cover.
+	 * 
+	 * @param path File path, as it must appear in the XML.
+	 * @param coverage Executable lines of the file.
+	 * @throws IOException
+	 */
+	public void writeFile(String path, LineCoverage coverage) throws IOException {
+		this.startFile(path);
+		
+		for (int line = coverage.nextLine(0); line >= 0; line = coverage.nextLine(line + 1)) {
+			this.lineToCover(line, coverage.isCovered(line));
+		}
+		
+		this.endFile();
+	}
+
+	public void startFile(String path) throws IOException {
+		this.append("\t<file path=\"");
+		this.appendEscaped(path);
+		this.append("\">\n");
+	}
+
+	public void lineToCover(int lineNumber, boolean covered) throws IOException {
+		this.append("\t\t<lineToCover lineNumber=\"");
+		this.append(lineNumber);
+		this.append(covered ? "\" covered=\"true\"/>\n" : "\" covered=\"false\"/>\n");
+	}
+
+	public void endFile() throws IOException {
+		this.append("\t</file>\n");
+	}
+
+	/**
+	 * Writes the end of the coverage root element and closes the output.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			this.append("</coverage>\n");
+			this.flushBuffer();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Closes the output without the end of the coverage root element, after a
+	 * failure, so the partial XML is never taken as a whole report.
+	 */
+	public void abort() throws IOException {
+		try {
+			this.flushBuffer();
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void append(String text) throws IOException {
+		int length = text.length();
+		
+		if (count + length > buffer.length) {
+			this.flushBuffer();
+			
+			if (length > buffer.length) {
+				writer.write(text);
+				return;
+			}
+		}
+		
+		text.getChars(0, length, buffer, count);
+		count += length;
+	}
+
+	private void append(char c) throws IOException {
+		if (count == buffer.length) {
+			this.flushBuffer();
+		}
+		
+		buffer[count++] = c;
+	}
+
+	/**
+	 * Writes a non-negative number without creating its String representation.
+	 */
+	private void append(int value) throws IOException {
+		int pos = number.length;
+		
+		do {
+			number[--pos] = (char) ('0' + value % 10);
+			value /= 10;
+		} while (value > 0);
+		
+		if (count + number.length > buffer.length) {
+			this.flushBuffer();
+		}
+		
+		System.arraycopy(number, pos, buffer, count, number.length - pos);
+		count += number.length - pos;
+	}
+
+	/**
+	 * Writes an attribute value escaping the XML special characters.
+	 */
+	private void appendEscaped(String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			
+			switch (c) {
+				case '&':
+					this.append("&amp;");
+					break;
+				case '<':
+					this.append("&lt;");
+					break;
+				case '>':
+					this.append("&gt;");
+					break;
+				case '"':
+					this.append("&quot;");
+					break;
+				case '\'':
+					this.append("&apos;");
+					break;
+				default:
+					this.append(c);
+			}
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		writer.write(buffer, 0, count);
+		count = 0;
+	}
+}
@@ -0,0 +1,87 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Include and exclude glob patterns, as accepted by FileSystem.getPathMatcher.
+ * A pattern without "/" is matched against the file name only, otherwise it is
+ * matched against the whole relative path, always with "/" separators.
+ */
+public class GlobFilter {
+	private List<PathMatcher> includes = new ArrayList<PathMatcher>();
+	private List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+	private List<Boolean> includeNames = new ArrayList<Boolean>();
+	private List<Boolean> excludeNames = new ArrayList<Boolean>();
+
+	/**
+	 * Adds patterns of the accepted paths. When there is none, all paths not excluded are accepted.
+	 *
+	 * @param patterns Glob patterns separated by the path separator.
+	 */
+	public void include(String patterns) {
+		add(patterns, includes, includeNames);
+	}
+
+	/**
+	 * Adds patterns of the rejected paths, they prevail over the included ones.
+	 *
+	 * @param patterns Glob patterns separated by the path separator.
+	 */
+	public void exclude(String patterns) {
+		add(patterns, excludes, excludeNames);
+	}
+
+	/**
+	 * If no include or exclude pattern was informed.
+	 */
+	public boolean isEmpty() {
+		return includes.isEmpty() && excludes.isEmpty();
+	}
+
+	/**
+	 * If there are include patterns, so a path must match one of them to be accepted.
+	 */
+	public boolean hasIncludes() {
+		return !includes.isEmpty();
+	}
+
+	/**
+	 * If the path is accepted by the patterns.
+	 *
+	 * @param path Relative path, with "/" or "\" separators.
+	 */
+	public boolean accept(String path) {
+		path = path.replace('\\', '/');
+		String name = path.substring(path.lastIndexOf('/') + 1);
+
+		return (includes.isEmpty() || matches(path, name, includes, includeNames)) && !matches(path, name, excludes, excludeNames);
+	}
+
+	private static boolean matches(String path, String name, List<PathMatcher> matchers, List<Boolean> names) {
+		try {
+			for (int i = 0; i < matchers.size(); i++) {
+				if (matchers.get(i).matches(Paths.get(names.get(i) ? name : path))) {
+					return true;
+				}
+			}
+		} catch (InvalidPathException e) {
+			// Not a valid path in this file system, so it can not match.
+		}
+
+		return false;
+	}
+
+	private static void add(String patterns, List<PathMatcher> matchers, List<Boolean> names) {
+		for (String pattern : patterns.split(File.pathSeparator)) {
+			if (!pattern.isEmpty()) {
+				matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + pattern));
+				names.add(pattern.indexOf('/') == -1);
+			}
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package com.oecoverage.coverage;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Top lines by cumulative time and by execution count, mapped to the original
+ * source lines. The lines of a compile unit are summed while the unit is read
+ * and only the top ones are kept, in bounded heaps. The lines of include files,
+ * shared by several units, are summed until the report is written.
+ */
+public class HotspotReport {
+	private static final Comparator<Hotspot> BY_TIME = new Comparator<Hotspot>() {
+		@Override
+		public int compare(Hotspot a, Hotspot b) {
+			int compare = Double.compare(a.cumulative, b.cumulative);
+			return (compare != 0 ? compare : Long.compare(a.hits, b.hits));
+		}
+	};
+
+	private static final Comparator<Hotspot> BY_HITS = new Comparator<Hotspot>() {
+		@Override
+		public int compare(Hotspot a, Hotspot b) {
+			int compare = Long.compare(a.hits, b.hits);
+			return (compare != 0 ? compare : Double.compare(a.cumulative, b.cumulative));
+		}
+	};
+
+	private int top;
+	private PriorityQueue<Hotspot> byTime;
+	private PriorityQueue<Hotspot> byHits;
+	private Map<String, Hotspot> source = new HashMap<String, Hotspot>();
+	private Map<String, Hotspot> includes = new HashMap<String, Hotspot>();
+
+	/**
+	 * @param top Number of lines kept in each order.
+	 */
+	public HotspotReport(int top) {
+		this.top = top;
+		this.byTime = new PriorityQueue<Hotspot>(Math.max(1, top), BY_TIME);
+		this.byHits = new PriorityQueue<Hotspot>(Math.max(1, top), BY_HITS);
+	}
+
+	/**
+	 * Adds the timings of a compile unit, mapped by its listing.
+	 *
+	 * @param name Compile unit name.
+	 * @param timings Timings of the listing lines.
+	 * @param listing Listing of the compile unit.
+	 */
+	public void add(String name, LineTimings timings, ListingFile listing) {
+		for (int line = timings.nextLine(0); line >= 0; line = timings.nextLine(line + 1)) {
+			String sourceR = listing.getOriginalSource(line);
+			int lineR = listing.getOriginalLine(line);
+
+			if (lineR == 0) {
+				continue;
+			}
+
+			add(sourceR.equals(name) ? source : includes, sourceR, lineR, timings, line);
+		}
+
+		this.offer(source);
+	}
+
+	private static void add(Map<String, Hotspot> hotspots, String source, int line, LineTimings timings, int listingLine) {
+		String key = source + ':' + line;
+		Hotspot hotspot = hotspots.get(key);
+
+		if (hotspot == null) {
+			hotspot = new Hotspot(source, line);
+			hotspots.put(key, hotspot);
+		}
+
+		hotspot.hits += timings.getHits(listingLine);
+		hotspot.actual += timings.getActualTime(listingLine);
+		hotspot.cumulative += timings.getCumulativeTime(listingLine);
+	}
+
+	/**
+	 * Moves the summed lines to the heaps, keeping only the top ones.
+	 */
+	private void offer(Map<String, Hotspot> hotspots) {
+		for (Hotspot hotspot : hotspots.values()) {
+			offer(byTime, hotspot, BY_TIME);
+			offer(byHits, hotspot, BY_HITS);
+		}
+
+		hotspots.clear();
+	}
+
+	private void offer(PriorityQueue<Hotspot> heap, Hotspot hotspot, Comparator<Hotspot> order) {
+		if (heap.size() < top) {
+			heap.add(hotspot);
+		} else if (top > 0 && order.compare(hotspot, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(hotspot);
+		}
+	}
+
+	/**
+	 * Writes the report, as JSON when the file name ends with ".json", as CSV otherwise.
+	 *
+	 * @param output File where the report is written.
+	 * @throws IOException
+	 */
+	public void write(String output) throws IOException {
+		this.offer(includes);
+
+		List<Hotspot> time = sorted(byTime, BY_TIME);
+		List<Hotspot> hits = sorted(byHits, BY_HITS);
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+			if (output.toLowerCase(Locale.ROOT).endsWith(".json")) {
+				writer.write("{\n  \"byTime\": [");
+				writeJson(writer, time);
+				writer.write("\n  ],\n  \"byHits\": [");
+				writeJson(writer, hits);
+				writer.write("\n  ]\n}\n");
+			} else {
+				writer.write("order,rank,source,line,hits,actual_time,cumulative_time\n");
+				writeCsv(writer, "time", time);
+				writeCsv(writer, "hits", hits);
+			}
+		}
+
+		System.out.println("** Hotspot report written to \"" + output + "\" **");
+	}
+
+	private static List<Hotspot> sorted(PriorityQueue<Hotspot> heap, Comparator<Hotspot> order) {
+		List<Hotspot> list = new ArrayList<Hotspot>(heap);
+		Collections.sort(list, Collections.reverseOrder(order));
+		return list;
+	}
+
+	private static void writeJson(Writer writer, List<Hotspot> hotspots) throws IOException {
+		String separator = "\n";
+
+		for (Hotspot hotspot : hotspots) {
+			writer.write(separator + "    {\"source\": \"" + hotspot.source.replace("\\", "\\\\").replace("\"", "\\\"") + "\", \"line\": " + hotspot.line
+					+ ", \"hits\": " + hotspot.hits + ", \"actualTime\": " + format(hotspot.actual) + ", \"cumulativeTime\": " + format(hotspot.cumulative) + "}");
+			separator = ",\n";
+		}
+	}
+
+	private static void writeCsv(Writer writer, String order, List<Hotspot> hotspots) throws IOException {
+		for (int i = 0; i < hotspots.size(); i++) {
+			Hotspot hotspot = hotspots.get(i);
+
+			writer.write(order + "," + (i + 1) + ",\"" + hotspot.source.replace("\"", "\"\"") + "\"," + hotspot.line + "," + hotspot.hits
+					+ "," + format(hotspot.actual) + "," + format(hotspot.cumulative) + "\n");
+		}
+	}
+
+	private static String format(double time) {
+		return String.format(Locale.ROOT, "%.6f", time);
+	}
+
+	private static class Hotspot {
+		private String source;
+		private int line;
+		private long hits;
+		private double actual;
+		private double cumulative;
+
+		Hotspot(String source, int line) {
+			this.source = source;
+			this.line = line;
+		}
+	}
+}
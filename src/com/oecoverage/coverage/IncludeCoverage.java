@@ -0,0 +1,55 @@
+package com.oecoverage.coverage;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Lines of the include files, shared by the compile units mapped concurrently.
+ * Each include file has its own coverage, locked only while the lines of a
+ * unit are merged into it, so units that use different include files never
+ * wait for each other. A line is covered when any unit covered it, so the
+ * result does not depend on the order the units are merged.
+ */
+public class IncludeCoverage {
+	private ConcurrentMap<String, LineCoverage> includes = new ConcurrentHashMap<String, LineCoverage>();
+
+	/**
+	 * Merges the lines a compile unit mapped to the include files.
+	 *
+	 * @param lines Lines of each include file, by original source name.
+	 */
+	public void merge(Map<String, LineCoverage> lines) {
+		for (Map.Entry<String, LineCoverage> include : lines.entrySet()) {
+			LineCoverage coverage = includes.get(include.getKey());
+
+			if (coverage == null) {
+				LineCoverage created = new LineCoverage();
+				coverage = includes.putIfAbsent(include.getKey(), created);
+
+				if (coverage == null) {
+					coverage = created;
+				}
+			}
+
+			synchronized (coverage) {
+				coverage.merge(include.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the lines of the include files, sorted by source name.
+	 */
+	public SortedMap<String, LineCoverage> getSorted() {
+		return new TreeMap<String, LineCoverage>(includes);
+	}
+
+	/**
+	 * Number of include files with lines.
+	 */
+	public int size() {
+		return includes.size();
+	}
+}
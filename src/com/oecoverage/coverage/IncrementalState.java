@@ -0,0 +1,237 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Merged coverage and manifest of the profiler and listing files processed by
+ * the previous run, used to read only the new or changed profiler files. The
+ * coverage is kept as a {@link CoverageSnapshot}.
+ */
+public class IncrementalState {
+	private static final int STATE_MAGIC = 0x4F454953; // "OEIS"
+	private static final int STATE_VERSION = 6;
+	private static final String STATE_FILE = "coverage.state";
+
+	private File directory;
+	private ProfilerCoverage coverage;
+	private Map<String, FileStamp> profilers = new TreeMap<String, FileStamp>();
+	private Map<String, FileStamp> listings = new TreeMap<String, FileStamp>();
+
+	/**
+	 * Incremental state kept in the informed directory.
+	 *
+	 * @param directory Directory where the state is kept.
+	 */
+	public IncrementalState(String directory) {
+		this.directory = new File(directory);
+
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new RuntimeException("Could not create the incremental state directory \"" + directory + "\"");
+		}
+	}
+
+	/**
+	 * Loads the state saved by the previous run.
+	 *
+	 * @param scope Sources kept by this run, as described by the source filter.
+	 * @param timed If this run keeps the execution counts and times of the lines.
+	 * @param callGraph If this run keeps the calls between the sources.
+	 * @return false if there is no valid saved state, or it kept other sources, timings or calls.
+	 */
+	public boolean load(String scope, boolean timed, boolean callGraph) {
+		File file = new File(directory, STATE_FILE);
+
+		if (!file.isFile()) {
+			return false;
+		}
+
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (input.readInt() != STATE_MAGIC || input.readInt() != STATE_VERSION) {
+				return false;
+			}
+
+			// The sources dropped by the previous run can not be recovered without reading all the files.
+			if (!input.readUTF().equals(scope)) {
+				System.out.println("** The sources filter changed, rebuilding the coverage **");
+				return false;
+			}
+
+			// The timings of the files read by the previous runs are only kept when they were requested.
+			if (input.readBoolean() != timed) {
+				System.out.println("** The hotspot timings changed, rebuilding the coverage **");
+				return false;
+			}
+
+			if (input.readBoolean() != callGraph) {
+				System.out.println("** The call graph changed, rebuilding the coverage **");
+				return false;
+			}
+
+			readStamps(input, profilers);
+			readStamps(input, listings);
+			coverage = new ProfilerCoverage();
+			coverage.setTimed(true);
+			coverage.setCallGraph(true);
+			CoverageSnapshot.read(input, coverage);
+
+			return true;
+		} catch (IOException e) {
+			System.out.println("** Ignoring invalid incremental state \"" + file + "\" - Exception: " + e.getMessage());
+			profilers.clear();
+			listings.clear();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the coverage saved by the previous run.
+	 */
+	public ProfilerCoverage getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * Returns the profiler files that are new since the previous run.
+	 *
+	 * @param files Profiler files found in this run.
+	 * @return Files to be read, or null when the whole coverage must be rebuilt,
+	 * because a profiler file was modified or removed or a listing file changed.
+	 */
+	public List<File> getChangedFiles(List<File> files) {
+		List<File> changed = new ArrayList<File>();
+		Map<String, FileStamp> found = new TreeMap<String, FileStamp>();
+
+		for (File file : files) {
+			FileStamp stamp = new FileStamp(file);
+			found.put(file.getAbsolutePath(), stamp);
+
+			FileStamp saved = profilers.get(file.getAbsolutePath());
+
+			// The saved coverage would keep the lines a modified file no longer covers, and its counts and times twice.
+			if (saved != null && !stamp.equals(saved)) {
+				System.out.println("** Profiler file \"" + file + "\" was modified, rebuilding the coverage **");
+				return null;
+			}
+
+			if (saved == null) {
+				changed.add(file);
+			}
+		}
+
+		for (String profiler : profilers.keySet()) {
+			if (!found.containsKey(profiler)) {
+				System.out.println("** Profiler file \"" + profiler + "\" was removed, rebuilding the coverage **");
+				return null;
+			}
+		}
+
+		for (Map.Entry<String, FileStamp> listing : listings.entrySet()) {
+			if (!listing.getValue().equals(new FileStamp(new File(listing.getKey())))) {
+				System.out.println("** Listing file \"" + listing.getKey() + "\" changed, rebuilding the coverage **");
+				return null;
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Saves the coverage and the manifest of the files used in this run.
+	 *
+	 * @param coverage Merged coverage of all profiler files.
+	 * @param scope Sources kept by this run, as described by the source filter.
+	 * @param files Profiler files read in this run or in the previous ones.
+	 * @param listingFiles Listing files used to resolve the coverage.
+	 * @throws IOException
+	 */
+	public void save(ProfilerCoverage coverage, String scope, List<File> files, List<String> listingFiles) throws IOException {
+		profilers.clear();
+		listings.clear();
+
+		for (File file : files) {
+			profilers.put(file.getAbsolutePath(), new FileStamp(file));
+		}
+
+		for (String listing : listingFiles) {
+			listings.put(new File(listing).getAbsolutePath(), new FileStamp(new File(listing)));
+		}
+
+		File temp = File.createTempFile("coverage", ".tmp", directory);
+
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				output.writeInt(STATE_MAGIC);
+				output.writeInt(STATE_VERSION);
+				output.writeUTF(scope);
+				output.writeBoolean(coverage.isTimed());
+				output.writeBoolean(coverage.isCallGraph());
+				writeStamps(output, profilers);
+				writeStamps(output, listings);
+				CoverageSnapshot.write(coverage, output);
+			}
+
+			Files.move(temp.toPath(), new File(directory, STATE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+
+		this.coverage = coverage;
+	}
+
+	private static void writeStamps(DataOutputStream output, Map<String, FileStamp> stamps) throws IOException {
+		output.writeInt(stamps.size());
+
+		for (Map.Entry<String, FileStamp> stamp : stamps.entrySet()) {
+			output.writeUTF(stamp.getKey());
+			output.writeLong(stamp.getValue().size);
+			output.writeLong(stamp.getValue().modified);
+		}
+	}
+
+	private static void readStamps(DataInputStream input, Map<String, FileStamp> stamps) throws IOException {
+		int count = input.readInt();
+
+		for (int i = 0; i < count; i++) {
+			stamps.put(input.readUTF(), new FileStamp(input.readLong(), input.readLong()));
+		}
+	}
+
+	/**
+	 * Size and modification time of a file.
+	 */
+	private static class FileStamp {
+		private final long size;
+		private final long modified;
+
+		FileStamp(File file) {
+			this(file.length(), file.lastModified());
+		}
+
+		FileStamp(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof FileStamp && ((FileStamp) other).size == size && ((FileStamp) other).modified == modified;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(size) * 31 + Long.hashCode(modified);
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package com.oecoverage.coverage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.BitSet;
+
+public class LineCoverage {
+	private static final int ENCODING_WORDS = 0;
+	private static final int ENCODING_RUNS = 1;
+	
+	private final BitSet lines;
+	private final BitSet covered;
+	private final boolean readOnly;
+
+	public LineCoverage() {
+		this(new BitSet(), new BitSet(), false);
+	}
+
+	private LineCoverage(BitSet lines, BitSet covered, boolean readOnly) {
+		this.lines = lines;
+		this.covered = covered;
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * Returns a read-only view of this coverage. Changes made to this coverage
+	 * are visible through the view.
+	 * 
+	 * @return Read-only coverage.
+	 */
+	public LineCoverage view() {
+		return (readOnly ? this : new LineCoverage(lines, covered, true));
+	}
+
+	/**
+	 * Adds an executable line. A line already covered is never reverted to
+	 * not covered.
+	 * 
+	 * @param line Line number.
+	 * @param covered If the line was covered.
+	 */
+	public void add(int line, boolean covered) {
+		this.checkWritable();
+		this.lines.set(line);
+		
+		if (covered) {
+			this.covered.set(line);
+		}
+	}
+
+	/**
+	 * Merges the lines of another coverage into this one.
+	 * 
+	 * @param other Coverage to be merged.
+	 */
+	public void merge(LineCoverage other) {
+		this.checkWritable();
+		this.lines.or(other.lines);
+		this.covered.or(other.covered);
+	}
+
+	/**
+	 * Returns the first executable line greater or equal to the informed one.
+	 * 
+	 * @param line Line where the search starts.
+	 * @return Executable line found or -1 when there is none.
+	 */
+	public int nextLine(int line) {
+		return lines.nextSetBit(line);
+	}
+
+	public boolean isCovered(int line) {
+		return covered.get(line);
+	}
+
+	public boolean isEmpty() {
+		return lines.isEmpty();
+	}
+
+	public int size() {
+		return lines.cardinality();
+	}
+
+	public void clear() {
+		this.checkWritable();
+		lines.clear();
+		covered.clear();
+	}
+
+	/**
+	 * Approximate memory used by the lines, in bytes.
+	 */
+	long getMemorySize() {
+		return (lines.size() + covered.size()) / 8 + 64;
+	}
+
+	/**
+	 * Writes the executable and covered lines.
+	 * 
+	 * @param output Output where the lines are written.
+	 * @throws IOException
+	 */
+	void write(DataOutput output) throws IOException {
+		writeBits(output, lines);
+		writeBits(output, covered);
+	}
+
+	/**
+	 * Reads the lines previously written by {@link #write(DataOutput)}.
+	 * 
+	 * @param input Input where the lines are read from.
+	 * @return Coverage read.
+	 * @throws IOException
+	 */
+	static LineCoverage read(DataInput input) throws IOException {
+		return new LineCoverage(readBits(input), readBits(input), false);
+	}
+
+	/**
+	 * Writes the lines as words or as runs of consecutive lines, whichever is
+	 * smaller. Runs are usually smaller, as the executable lines of a source
+	 * tend to be sparse and the covered ones to be grouped.
+	 */
+	static void writeBits(DataOutput output, BitSet bits) throws IOException {
+		int words = (bits.length() + 63) / 64;
+		int runs = 0;
+		int size = 0;
+		
+		for (int start = bits.nextSetBit(0), end = 0; start >= 0; start = bits.nextSetBit(end)) {
+			int next = bits.nextClearBit(start);
+			size += getVarIntSize(start - end) + getVarIntSize(next - start);
+			runs++;
+			end = next;
+		}
+		
+		if (size < words * 8) {
+			output.writeByte(ENCODING_RUNS);
+			writeVarInt(output, runs);
+			
+			for (int start = bits.nextSetBit(0), end = 0; start >= 0; start = bits.nextSetBit(end)) {
+				int next = bits.nextClearBit(start);
+				writeVarInt(output, start - end);
+				writeVarInt(output, next - start);
+				end = next;
+			}
+		} else {
+			long[] values = bits.toLongArray();
+			output.writeByte(ENCODING_WORDS);
+			writeVarInt(output, values.length);
+			
+			for (long value : values) {
+				output.writeLong(value);
+			}
+		}
+	}
+
+	static BitSet readBits(DataInput input) throws IOException {
+		int encoding = input.readByte();
+		int count = readVarInt(input);
+		
+		if (encoding == ENCODING_RUNS) {
+			BitSet bits = new BitSet();
+			
+			for (int i = 0, end = 0; i < count; i++) {
+				int start = end + readVarInt(input);
+				end = start + readVarInt(input);
+				bits.set(start, end);
+			}
+			
+			return bits;
+		}
+		
+		if (encoding != ENCODING_WORDS) {
+			throw new IOException("Unknown line encoding: " + encoding);
+		}
+		
+		long[] words = new long[count];
+		
+		for (int i = 0; i < words.length; i++) {
+			words[i] = input.readLong();
+		}
+		
+		return BitSet.valueOf(words);
+	}
+
+	/**
+	 * Writes a non-negative number in 7 bit groups, the smaller numbers in fewer bytes.
+	 */
+	static void writeVarInt(DataOutput output, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			output.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		
+		output.writeByte(value);
+	}
+
+	/**
+	 * Reads a number written by {@link #writeVarInt(DataOutput, int)}.
+	 */
+	static int readVarInt(DataInput input) throws IOException {
+		int value = 0;
+		
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = input.readByte();
+			value |= (b & 0x7F) << shift;
+			
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		
+		throw new IOException("Invalid variable length number");
+	}
+
+	private static int getVarIntSize(int value) {
+		int size = 1;
+		
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		
+		return size;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Read-only line coverage");
+		}
+	}
+}
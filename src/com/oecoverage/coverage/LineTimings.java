@@ -0,0 +1,116 @@
+package com.oecoverage.coverage;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Execution count, actual time and cumulative time of the lines of a source,
+ * summed across all the profiler files. The times are in seconds, as written
+ * by the profiler.
+ */
+public class LineTimings {
+	private BitSet lines = new BitSet();
+	private long[] hits = new long[0];
+	private double[] actual = new double[0];
+	private double[] cumulative = new double[0];
+
+	/**
+	 * Adds the execution of a line.
+	 *
+	 * @param line Line number.
+	 * @param hits Number of times the line was executed.
+	 * @param actual Time spent in the line itself.
+	 * @param cumulative Time spent in the line, including the called code.
+	 */
+	public void add(int line, long hits, double actual, double cumulative) {
+		if (line >= this.hits.length) {
+			int length = Math.max(line + 1, this.hits.length * 2);
+
+			this.hits = Arrays.copyOf(this.hits, length);
+			this.actual = Arrays.copyOf(this.actual, length);
+			this.cumulative = Arrays.copyOf(this.cumulative, length);
+		}
+
+		this.lines.set(line);
+		this.hits[line] += hits;
+		this.actual[line] += actual;
+		this.cumulative[line] += cumulative;
+	}
+
+	/**
+	 * Merges the timings of another source into this one.
+	 *
+	 * @param other Timings to be merged.
+	 */
+	public void merge(LineTimings other) {
+		for (int line = other.nextLine(0); line >= 0; line = other.nextLine(line + 1)) {
+			this.add(line, other.hits[line], other.actual[line], other.cumulative[line]);
+		}
+	}
+
+	/**
+	 * Returns the first executed line greater or equal to the informed one.
+	 *
+	 * @param line Line where the search starts.
+	 * @return Executed line found or -1 when there is none.
+	 */
+	public int nextLine(int line) {
+		return lines.nextSetBit(line);
+	}
+
+	public long getHits(int line) {
+		return (line < hits.length ? hits[line] : 0);
+	}
+
+	public double getActualTime(int line) {
+		return (line < actual.length ? actual[line] : 0);
+	}
+
+	public double getCumulativeTime(int line) {
+		return (line < cumulative.length ? cumulative[line] : 0);
+	}
+
+	/**
+	 * Approximate memory used by the timings, in bytes.
+	 */
+	long getMemorySize() {
+		return hits.length * 24L + lines.size() / 8 + 96;
+	}
+
+	/**
+	 * Writes the timings of the executed lines.
+	 *
+	 * @param output Output where the timings are written.
+	 * @throws IOException
+	 */
+	void write(DataOutput output) throws IOException {
+		output.writeInt(lines.cardinality());
+
+		for (int line = lines.nextSetBit(0); line >= 0; line = lines.nextSetBit(line + 1)) {
+			output.writeInt(line);
+			output.writeLong(hits[line]);
+			output.writeDouble(actual[line]);
+			output.writeDouble(cumulative[line]);
+		}
+	}
+
+	/**
+	 * Reads the timings previously written by {@link #write(DataOutput)}.
+	 *
+	 * @param input Input where the timings are read from.
+	 * @return Timings read.
+	 * @throws IOException
+	 */
+	static LineTimings read(DataInput input) throws IOException {
+		LineTimings timings = new LineTimings();
+		int count = input.readInt();
+
+		for (int i = 0; i < count; i++) {
+			timings.add(input.readInt(), input.readLong(), input.readDouble(), input.readDouble());
+		}
+
+		return timings;
+	}
+}
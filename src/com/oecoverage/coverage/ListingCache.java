@@ -0,0 +1,191 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class ListingCache {
+	private static final int CACHE_MAGIC = 0x4F454C43; // "OELC"
+	private static final int CACHE_VERSION = 3;
+	private static final String CACHE_EXTENSION = ".lst";
+	
+	private File directory;
+	private long maxSize;
+	private boolean checkContent;
+
+	/**
+	 * Persistent cache of the resolved listing files.
+	 * 
+	 * @param directory Directory where the cache entries are kept.
+	 * @param maxSize Maximum size, in bytes, of the cache directory.
+	 * @param checkContent If the listing content hash must also match, besides its size and modification time.
+	 */
+	public ListingCache(String directory, long maxSize, boolean checkContent) {
+		this.directory = new File(directory);
+		this.maxSize = maxSize;
+		this.checkContent = checkContent;
+		
+		if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+			throw new RuntimeException("Could not create the listing cache directory \"" + directory + "\"");
+		}
+	}
+
+	/**
+	 * Returns the listing of the source, reading it from the cache when the
+	 * listing file did not change since it was cached.
+	 * 
+	 * @param source Source name, as found in the profiler.
+	 * @param file Listing file of the source.
+	 * @return Resolved listing.
+	 * @throws IOException
+	 */
+	public ListingFile get(String source, String file) throws IOException {
+		File listing = new File(file).getAbsoluteFile();
+		File entry = new File(directory, this.getEntryName(source, listing));
+		
+		long size = listing.length();
+		long modified = listing.lastModified();
+		byte[] hash = (checkContent ? this.getContentHash(listing) : new byte[0]);
+		
+		if (entry.isFile()) {
+			try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+				if (input.readInt() == CACHE_MAGIC
+				 && input.readInt() == CACHE_VERSION
+				 && input.readUTF().equals(source)
+				 && input.readUTF().equals(listing.getPath())
+				 && input.readLong() == size
+				 && input.readLong() == modified
+				 && Arrays.equals(this.readHash(input), hash)) {
+					
+					ListingFile cached = ListingFile.read(input);
+					entry.setLastModified(System.currentTimeMillis());
+					return cached;
+				}
+			} catch (IOException e) {
+				System.out.println("** Ignoring invalid listing cache entry \"" + entry + "\" - Exception: " + e.getMessage());
+			}
+		}
+		
+		ListingFile list = new ListingFile(source, listing.getPath());
+		
+		// Writes to a temporary file first, so concurrent runs never read a partial entry.
+		File temp = File.createTempFile("listing", ".tmp", directory);
+		
+		try {
+			try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				output.writeInt(CACHE_MAGIC);
+				output.writeInt(CACHE_VERSION);
+				output.writeUTF(source);
+				output.writeUTF(listing.getPath());
+				output.writeLong(size);
+				output.writeLong(modified);
+				output.writeByte(hash.length);
+				output.write(hash);
+				list.write(output);
+			}
+			
+			Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+		
+		return list;
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache fits its maximum size.
+	 */
+	public void evict() {
+		File[] entries = directory.listFiles();
+		
+		if (entries == null) {
+			return;
+		}
+		
+		List<File> files = new ArrayList<File>();
+		long total = 0;
+		
+		for (File entry : entries) {
+			if (entry.getName().endsWith(CACHE_EXTENSION)) {
+				files.add(entry);
+				total += entry.length();
+			}
+		}
+		
+		Collections.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		
+		for (int i = 0; i < files.size() && total > maxSize; i++) {
+			long length = files.get(i).length();
+			
+			if (files.get(i).delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	private String getEntryName(String source, File listing) {
+		return toHex(digest(source + "\0" + listing.getPath())) + CACHE_EXTENSION;
+	}
+
+	private byte[] readHash(DataInputStream input) throws IOException {
+		byte[] hash = new byte[input.readUnsignedByte()];
+		input.readFully(hash);
+		return hash;
+	}
+
+	private byte[] getContentHash(File listing) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[64 * 1024];
+		int read;
+		
+		try (InputStream input = new FileInputStream(listing)) {
+			while ((read = input.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		
+		return digest.digest();
+	}
+
+	private static byte[] digest(String text) {
+		return newDigest().digest(text.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		
+		return hex.toString();
+	}
+}
@@ -1,30 +1,44 @@
 package com.oecoverage.coverage;
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ListingFile {
-	private List<String[]> listings = new ArrayList<>();
-	private List<String> sources = new ArrayList<>();
+	// Columns of the listing lines, only the first "size" positions are used.
+	private int size = 0;
+	private int[] includes = new int[256];
+	private int[] lines = new int[256];
+	private int[] blocks = new int[256];
+	private int[] sourceIds = new int[256];
+	private BitSet valid = new BitSet();
+	
+	// Names of the original sources, referenced by the source ids.
+	private List<String> sourceNames = new ArrayList<String>();
+	private Map<String, Integer> sourceTable = new HashMap<String, Integer>();
 
 	private static final int MAX_LISTING_LINE_LENGH = 354;
 	
-	private static final int LISTING_INCLUDE = 0;
-	private static final int LISTING_LINE = 1;
-	private static final int LISTING_BLOCK = 2;
-	private static final int LISTING_LINE_CONTENT = 3;
+	private static final int COLUMN_BLANK = 0;
+	private static final int COLUMN_INVALID = Integer.MIN_VALUE;
 
 	public ListingFile(String source, String file) throws IOException {
 		this.readListingFile(source, file);
 	}
 
+	private ListingFile() {
+	}
+
 	private void readListingFile(String source, String file) throws IOException {
 		
 		System.out.println("** Reading listing file \"" + file + "\" **");
-		
-		ArrayList<String> listingFile = this.adjustListingFile(file);
 
 		int src = 0;
 		int srcOld = -1;
@@ -34,188 +48,419 @@ public class ListingFile {
 		
 		List<String> stack = new ArrayList<String>();
 
-		String col1;
-		String col2;
-		String col3;
-		String col2Old = "";
+		int col2;
+		int col3;
+		int col2Old = COLUMN_INVALID;
 		
-		for (int i = 0; i < listingFile.size(); i++) {
-			line = listingFile.get(i);
-			
-			if (!line.startsWith(" ") || line.length() <= 0) {
-				continue;
-			}
-
-			col1 = line.substring(0, 2).trim(); // Source number
-			col2 = line.substring(2, 7).trim(); // Line number
-			col3 = line.substring(8, 11).trim(); // Block number
-
-			col1 = (col1.equals("") ? "0" : col1);
-			col2 = (col2.equals("") ? "0" : col2);
-			col3 = (col3.equals("") ? "0" : col3);
-
-			if (!col1.matches("-?\\d+(\\.\\d+)?")
-			 || !col2.matches("-?\\d+(\\.\\d+)?")
-			 || !col3.matches("-?\\d+(\\.\\d+)?")) {
-				continue;
-			}
-
-			src = Integer.parseInt(col1);
-			srcOld = (srcOld == -1 ? src : srcOld);
-
-			if (srcOld != src) {
-				if (srcOld < src) {
-					int close = 0;
-					int start = 0;
-
-					String last;
-					String include = "";
-
-					for (int j = i - 1; j >= 0; j--) {
-						last = listingFile.get(j);
-						start = 0;
-
-						while (last.indexOf('}', start) >= 0) {
-							start = last.indexOf('}', start) + 1;
-							close++;
-						}
-
-						start = 0;
-
-						while (last.indexOf('{', start) >= 0) {
-							start = last.indexOf('{', start) + 1;
-							close--;
-						}
-
-						if(close > 0) { 
-							listings.remove(listings.size() - 1);
-							sources.remove(sources.size() - 1);
-						}
-
-						include = last + include;
-						if (close == 0) break;
-					}
-
-					include = include.substring(12).trim();
-					include = include.substring(include.indexOf('{'));
-
-					String[] tokens = include.split(" ");
-					
-					for (String token : tokens) {
+		// Content of the last listing line, that may still be joined with the next line.
+		StringBuilder content = new StringBuilder();
+		
+		// Braces opened and not closed before the current line, and the recent lines that
+		// may be part of a multi-line include reference.
+		IncludeReference reference = new IncludeReference();
+		
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+			while ((line = reader.readLine()) != null) {
+				if (line.indexOf(12) == 0) {
+					break;
+				}
+				
+				if (!line.startsWith(" ") || line.length() <= 1 || parseColumn(line, 3, 7) == COLUMN_INVALID) {
+					continue;
+				}
+	
+				src = parseColumn(line, 0, 2); // Source number
+				col2 = parseColumn(line, 2, 7); // Line number
+				col3 = parseColumn(line, 8, 11); // Block number
+	
+				if (src == COLUMN_INVALID || col2 == COLUMN_INVALID || col3 == COLUMN_INVALID) {
+					reference.add(line, size);
+					continue;
+				}
+	
+				srcOld = (srcOld == -1 ? src : srcOld);
+	
+				if (srcOld != src) {
+					if (srcOld < src) {
+						String include = reference.find();
 						
-						if (token.indexOf("{") != -1){
+						if (include != null) {
+							int entries = reference.getEntries();
 							
-							String[] items = token.split("}");
-							
-							for (String item : items) {
-							
-								if(!item.contains("&") && (item.contains("/") || item.contains("\\"))) {
-									
-									stack.add(item.replace("{", "").replace("}", ""));
-								}
+							if (entries < size) { 
+								// The lines after the first one are part of the include reference, not listing lines.
+								valid.clear(entries, size);
+								size = entries;
+								content.setLength(0);
 							}
+	
+							this.pushIncludes(include, stack);
 						}
+					} else if (!stack.isEmpty()) {
+						stack.remove(stack.size() - 1);
 					}
-				} else {
-					stack.remove(stack.size() - 1);
 				}
+	
+				/* Line break. Ex. 1:1  2  123     DISPLAY var1 var2 var3 [...]
+									 1  2  123     var1100 var1101 var1102.
+									
+							   Ex. 2:1  2    1     DISPLAY var1 var2 var3 [...]
+									 1  2  123     var1100 var1101 var1102.
+				*/
+				if((col2Old == col2 || (col2Old == 1 && col2 != 2)) && srcOld == src && lineOld.length() >= MAX_LISTING_LINE_LENGH && size > 0) {
+	
+					int last = size - 1;
+					includes[last] = src;
+					lines[last] = col2;
+					blocks[last] = col3;
+					content.append(getContent(line));
+				} else {
+	
+					this.validate(content);
+					this.ensureCapacity(size + 1);
+					
+					includes[size] = src;
+					lines[size] = col2;
+					blocks[size] = col3;
+					sourceIds[size] = this.getSourceId(stack.isEmpty() ? source : stack.get(stack.size() - 1));
+					size++;
+					
+					content.setLength(0);
+					content.append(getContent(line));
+				}		
+	
+				reference.add(line, size);
+				
+				col2Old = col2;
+				lineOld = line;
+				srcOld = src;
 			}
+		}
+		
+		this.validate(content);
+	}
 
-			String listing[];
+	/**
+	 * Adds the include files referenced by the include reference to the stack.
+	 * 
+	 * @param include Listing lines containing the include reference.
+	 * @param stack Stack of the include files being read.
+	 */
+	private void pushIncludes(String include, List<String> stack) {
+		include = getContent(include);
+		
+		if (include.indexOf('{') < 0) {
+			return;
+		}
+		
+		include = include.substring(include.indexOf('{'));
 
-			/* Line break. Ex. 1:1  2  123     DISPLAY var1 var2 var3 [...]
-								 1  2  123     var1100 var1101 var1102.
-								
-						   Ex. 2:1  2    1     DISPLAY var1 var2 var3 [...]
-								 1  2  123     var1100 var1101 var1102.
-			*/
-			if((col2Old.equalsIgnoreCase(col2) || (col2Old.equalsIgnoreCase("1") && !col2.equalsIgnoreCase("2"))) && srcOld == src && lineOld.length() >= MAX_LISTING_LINE_LENGH) {
+		String[] tokens = include.split(" ");
+		
+		for (String token : tokens) {
+			
+			if (token.indexOf("{") != -1){
+				
+				String[] items = token.split("}");
+				
+				for (String item : items) {
+				
+					if(!item.contains("&") && (item.contains("/") || item.contains("\\"))) {
+						
+						stack.add(item.replace("{", "").replace("}", ""));
+					}
+				}
+			}
+		}
+	}
 
-				int last = listings.size() - 1;
-				listing = listings.get(last);				
-				listing[LISTING_INCLUDE] = Integer.toString(src);				
-				listing[LISTING_LINE] = col2;
-				listing[LISTING_BLOCK] = col3;				
-				listing[LISTING_LINE_CONTENT] = listing[LISTING_LINE_CONTENT] + line.substring(12).replaceAll("^\\s+","").replaceAll("\\s+$","");
-				listings.set(last, listing);				
-			} else {
+	/**
+	 * Sets the validity of the last listing line from its complete content.
+	 */
+	private void validate(CharSequence content) {
+		if (size > 0 && isLineValid(content.toString())) {
+			valid.set(size - 1);
+		}
+	}
 
-				listing = new String[4];				
-				listing[LISTING_INCLUDE] = Integer.toString(src);
-				listing[LISTING_LINE] = col2;
-				listing[LISTING_BLOCK] = col3;
-				listing[LISTING_LINE_CONTENT] = line.substring(12).replaceAll("^\\s+","").replaceAll("\\s+$","");	
-				listings.add(listing);
-				sources.add(stack.isEmpty() ? source : stack.get(stack.size() - 1));
-			}		
+	private static boolean isLineValid(String content) {
+		return !content.isEmpty() && (containsIgnoreCase(content, "IF") || !containsIgnoreCase(content, "DO:")) && !content.regionMatches(true, 0, "END", 0, 3);
+	}
 
-			col2Old = col2;
-			lineOld = line;
-			srcOld = src;
+	private static boolean containsIgnoreCase(String content, String text) {
+		for (int i = 0; i + text.length() <= content.length(); i++) {
+			if (content.regionMatches(true, i, text, 0, text.length())) {
+				return true;
+			}
 		}
+		
+		return false;
 	}
 
 	/**
-	 * Adjust the Progress Listing file removing the unnecessary text and breaking
-	 * lines.
-	 * 
-	 * @param file
-	 * @return
-	 * @throws IOException
+	 * Returns the listing line content, after the listing columns, without the surrounding spaces.
 	 */
-	private ArrayList<String> adjustListingFile(String file) throws IOException {
-		ArrayList<String> newFile = new ArrayList<String>();
-		BufferedReader reader = new BufferedReader(new FileReader(file));
+	private static String getContent(String line) {
+		return (line.length() > 12 ? line.substring(12).trim() : "");
+	}
 
-		String line;
-		String colLine = "";
+	/**
+	 * Parses a fixed listing column as an integer number.
+	 * 
+	 * @return Number found, {@link #COLUMN_BLANK} for blank columns or {@link #COLUMN_INVALID} when it is not a number.
+	 */
+	private static int parseColumn(String line, int start, int end) {
+		end = Math.min(end, line.length());
+		
+		while (start < end && line.charAt(start) == ' ') {
+			start++;
+		}
+		
+		while (end > start && line.charAt(end - 1) == ' ') {
+			end--;
+		}
+		
+		if (start == end) {
+			return COLUMN_BLANK;
+		}
+		
+		boolean negative = (line.charAt(start) == '-');
+		int value = 0;
+		
+		for (int i = (negative ? start + 1 : start); i < end; i++) {
+			char c = line.charAt(i);
+			
+			if (c < '0' || c > '9' || value > 99999) {
+				return COLUMN_INVALID;
+			}
+			
+			value = value * 10 + (c - '0');
+		}
+		
+		return (negative && end == start + 1 ? COLUMN_INVALID : (negative ? -value : value));
+	}
 
-		while ((line = reader.readLine()) != null) {
-			if (line.indexOf(12) == 0) {
-				break;
-			} else if (line.startsWith(" ") && line.length() > 1) {
-				colLine = line.substring(3, 7).trim();
+	private int getSourceId(String name) {
+		Integer id = sourceTable.get(name);
+		
+		if (id == null) {
+			id = sourceNames.size();
+			sourceTable.put(name, id);
+			sourceNames.add(name);
+		}
+		
+		return id;
+	}
 
-				if (colLine.equals("")) colLine = "0";
+	private void ensureCapacity(int capacity) {
+		if (capacity > lines.length) {
+			int length = Math.max(capacity, lines.length * 2);
+			
+			includes = Arrays.copyOf(includes, length);
+			lines = Arrays.copyOf(lines, length);
+			blocks = Arrays.copyOf(blocks, length);
+			sourceIds = Arrays.copyOf(sourceIds, length);
+		}
+	}
 
-				if (!colLine.matches("-?\\d+(\\.\\d+)?")) {
-					continue;
-				}
+	/**
+	 * Writes the resolved listing information.
+	 * 
+	 * @param output Output where the listing is written.
+	 * @throws IOException
+	 */
+	void write(DataOutput output) throws IOException {
+		output.writeInt(sourceNames.size());
+		
+		for (String name : sourceNames) {
+			output.writeUTF(name);
+		}
+		
+		output.writeInt(size);
+		
+		for (int i = 0; i < size; i++) {
+			output.writeByte(includes[i]);
+			output.writeInt(lines[i]);
+			output.writeInt(blocks[i]);
+			output.writeInt(sourceIds[i]);
+		}
+		
+		long[] words = valid.toLongArray();
+		output.writeInt(words.length);
+		
+		for (long word : words) {
+			output.writeLong(word);
+		}
+	}
 
-				newFile.add(line);
+	/**
+	 * Reads a listing previously written by {@link #write(DataOutput)}.
+	 * 
+	 * @param input Input where the listing is read from.
+	 * @return Resolved listing.
+	 * @throws IOException
+	 */
+	static ListingFile read(DataInput input) throws IOException {
+		ListingFile listing = new ListingFile();
+		int count = input.readInt();
+		
+		if (count < 0) {
+			throw new IOException("Invalid number of sources: " + count);
+		}
+		
+		for (int i = 0; i < count; i++) {
+			listing.getSourceId(input.readUTF());
+		}
+		
+		int size = input.readInt();
+		
+		if (size < 0) {
+			throw new IOException("Invalid number of lines: " + size);
+		}
+		
+		// The arrays grow while the lines are read, so a corrupt size ends in EOFException instead of a huge allocation.
+		for (int i = 0; i < size; i++) {
+			listing.ensureCapacity(i + 1);
+			listing.includes[i] = input.readByte();
+			listing.lines[i] = input.readInt();
+			listing.blocks[i] = input.readInt();
+			listing.sourceIds[i] = input.readInt();
+			
+			if (listing.sourceIds[i] < 0 || listing.sourceIds[i] >= listing.sourceNames.size()) {
+				throw new IOException("Invalid source id " + listing.sourceIds[i] + " at line " + (i + 1));
 			}
 		}
+		
+		listing.size = size;
+		
+		// Only the listing lines are flagged as valid.
+		int length = input.readInt();
+		
+		if (length < 0 || length > (size + 63) / 64) {
+			throw new IOException("Invalid number of valid line words: " + length);
+		}
+		
+		long[] words = new long[length];
+		
+		for (int i = 0; i < words.length; i++) {
+			words[i] = input.readLong();
+		}
+		
+		listing.valid = BitSet.valueOf(words);
+		
+		return listing;
+	}
 
-		reader.close();
-
-		return newFile;
+	/**
+	 * Number of listing lines.
+	 */
+	public int getLineCount() {
+		return size;
 	}
 
 	public int getOriginalLine(int line) {
 		line--;
-		return line < listings.size() ? Integer.parseInt(listings.get(line)[LISTING_LINE]) : 0;
+		return line < size ? lines[line] : 0;
 	}
 
 	public String getOriginalSource(int line) {
 		line--;
-		return line < sources.size() ? sources.get(line) : "";
+		return line < size ? sourceNames.get(sourceIds[line]) : "";
+	}
+
+	public int getBlock(int line) {
+		line--;
+		return line < size ? blocks[line] : 0;
 	}
 
 	public boolean isInclude(int line) {
 		line--;
-		return line < listings.size() ? Integer.parseInt(listings.get(line)[LISTING_INCLUDE]) > 0 : false;
+		return line < size ? includes[line] > 0 : false;
 	}
 	
 	public boolean isLineValid(int line) {
-		String content;
 		line--;
+		return line >= 0 && valid.get(line);
+	}
+
+	/**
+	 * Tracks the braces of the listing lines while they are read, so the include
+	 * reference that precedes the lines of an include file is known without
+	 * reading the listing backwards. The reference is made by the lines since the
+	 * last one that started with the same number of open braces as the current line.
+	 */
+	private static class IncludeReference {
+		private static final int MAX_REFERENCE_LENGTH = 64 * 1024;
+		
+		private StringBuilder text = new StringBuilder();
+		private int depth = 0;
+		private int base = 0;
+		
+		// Position in the text and number of listing lines of the last line started at each depth, above the base.
+		private int[] offsets = new int[16];
+		private int[] entries = new int[16];
+		
+		IncludeReference() {
+			Arrays.fill(offsets, -1);
+		}
+		
+		/**
+		 * Adds a line read from the listing.
+		 * 
+		 * @param line Listing line.
+		 * @param size Number of listing lines after the line was read.
+		 */
+		void add(String line, int size) {
+			if (depth <= base || text.length() > MAX_REFERENCE_LENGTH) {
+				// Nothing before this line can be part of a reference that ends after it.
+				text.setLength(0);
+				Arrays.fill(offsets, -1);
+				base = depth;
+			}
+			
+			int position = depth - base;
+			
+			if (position >= offsets.length) {
+				int length = Math.max(position + 1, offsets.length * 2);
+				int old = offsets.length;
+				
+				offsets = Arrays.copyOf(offsets, length);
+				entries = Arrays.copyOf(entries, length);
+				Arrays.fill(offsets, old, length, -1);
+			}
+			
+			offsets[position] = text.length();
+			entries[position] = size;
+			text.append(line);
+			
+			for (int i = 0; i < line.length(); i++) {
+				char c = line.charAt(i);
+				
+				if (c == '{') {
+					depth++;
+				} else if (c == '}') {
+					depth--;
+				}
+			}
+		}
 		
-		if (line < 0 || line > (listings.size() - 1)) {
-			content = "";
-		} else {
-			content = listings.get(line)[LISTING_LINE_CONTENT].toUpperCase();
+		/**
+		 * Returns the include reference that ends before the current line.
+		 * 
+		 * @return Lines of the reference, or null when it is not known.
+		 */
+		String find() {
+			int position = depth - base;
+			int found = (position >= 0 && position < offsets.length ? offsets[position] : -1);
+			
+			return (found == -1 ? null : text.substring(found));
 		}
 		
-		return !content.isEmpty() && (content.contains("IF") || !content.contains("DO:")) && !content.startsWith("END");
+		/**
+		 * Number of listing lines read until the first line of the reference returned by {@link #find()}.
+		 */
+		int getEntries() {
+			return entries[depth - base];
+		}
 	}
 }
@@ -0,0 +1,213 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * In-memory index of the files and directories found under the listing path,
+ * walked once, so the listing resolution does not probe the file system.
+ */
+public class ListingIndex {
+	private Path root;
+	private boolean caseSensitive = !new File("a").equals(new File("A"));
+	private Map<String, Boolean> entries = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Walks the listing path indexing all its files and directories.
+	 *
+	 * @param listingPath Path that contains the Source Listings files.
+	 * @param parallel If the directories are walked in parallel.
+	 * @throws IOException
+	 */
+	public ListingIndex(String listingPath, boolean parallel) throws IOException {
+		this.root = Paths.get(listingPath).toAbsolutePath().normalize();
+
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+
+		this.caseSensitive = isCaseSensitive(root);
+
+		if (parallel) {
+			ForkJoinPool.commonPool().invoke(new DirectoryWalk(root, ConcurrentHashMap.<Object>newKeySet()));
+		} else {
+			Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					add(dir, true);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					add(file, attrs.isDirectory());
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+
+		System.out.println("** Listing path \"" + listingPath + "\" indexed with " + entries.size() + " entries **");
+	}
+
+	/**
+	 * If a file or directory exists in the informed path, relative to the listing path.
+	 */
+	public boolean exists(String relative) {
+		return entries.containsKey(key(relative));
+	}
+
+	/**
+	 * If a directory exists in the informed path, relative to the listing path.
+	 */
+	public boolean isDirectory(String relative) {
+		return Boolean.TRUE.equals(entries.get(key(relative)));
+	}
+
+	/**
+	 * Number of files and directories indexed.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private void add(Path path, boolean directory) {
+		entries.put(key(root.relativize(path).toString().replace(File.separatorChar, '/')), directory);
+	}
+
+	/**
+	 * If the file system of the directory tells apart names that only differ in
+	 * case. The names of its entries are checked with the case flipped, a temporary
+	 * file is created when no entry has letters, and the platform default is kept
+	 * when the directory can not be checked.
+	 */
+	private boolean isCaseSensitive(Path directory) {
+		try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+			for (Path child : children) {
+				Boolean sensitive = isNameCaseSensitive(child);
+
+				if (sensitive != null) {
+					return sensitive;
+				}
+			}
+		} catch (IOException e) {
+			return caseSensitive;
+		}
+
+		try {
+			Path temp = Files.createTempFile(directory, "case", ".tmp");
+
+			try {
+				return isNameCaseSensitive(temp);
+			} finally {
+				Files.delete(temp);
+			}
+		} catch (IOException e) {
+			return caseSensitive;
+		}
+	}
+
+	/**
+	 * If the name of the file is told apart from the same name with the case
+	 * flipped, or null when the name has no letters.
+	 */
+	private static Boolean isNameCaseSensitive(Path file) throws IOException {
+		String name = file.getFileName().toString();
+		String flipped = name.toUpperCase(Locale.ROOT);
+
+		if (flipped.equals(name)) {
+			flipped = name.toLowerCase(Locale.ROOT);
+		}
+
+		if (flipped.equals(name)) {
+			return null;
+		}
+
+		Path other = file.resolveSibling(flipped);
+		return !Files.exists(other) || !Files.isSameFile(file, other);
+	}
+
+	/**
+	 * Normalizes the relative path, resolving the "." and ".." segments.
+	 */
+	private String key(String relative) {
+		List<String> segments = new ArrayList<String>();
+
+		for (String segment : relative.replace('\\', '/').split("/")) {
+			if (segment.equals("..")) {
+				if (!segments.isEmpty()) {
+					segments.remove(segments.size() - 1);
+				}
+			} else if (!segment.isEmpty() && !segment.equals(".")) {
+				segments.add(segment);
+			}
+		}
+
+		String key = String.join("/", segments);
+		return (caseSensitive ? key : key.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Indexes a directory, walking its subdirectories in parallel.
+	 */
+	private class DirectoryWalk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private Path directory;
+		private Set<Object> visited;
+
+		DirectoryWalk(Path directory, Set<Object> visited) {
+			this.directory = directory;
+			this.visited = visited;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryWalk> walks = new ArrayList<DirectoryWalk>();
+
+			add(directory, true);
+
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+				for (Path child : children) {
+					BasicFileAttributes attrs;
+
+					try {
+						attrs = Files.readAttributes(child, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					}
+
+					if (!attrs.isDirectory()) {
+						add(child, false);
+					} else if (attrs.fileKey() == null || visited.add(attrs.fileKey())) {
+						walks.add(new DirectoryWalk(child, visited));
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("** Error indexing listing directory \"" + directory + "\" - Exception: " + e.getMessage());
+			}
+
+			invokeAll(walks);
+		}
+	}
+}
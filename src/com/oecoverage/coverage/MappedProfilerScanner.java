@@ -0,0 +1,69 @@
+package com.oecoverage.coverage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Profiler scanner that reads the records straight from the memory mapped file.
+ * Files larger than a single mapping are read through consecutive windows.
+ */
+public class MappedProfilerScanner extends ProfilerScanner {
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+
+	private FileChannel channel;
+	private long size;
+	private long offset = 0;
+	private int window;
+
+	/**
+	 * Scans the profiler file mapping it into memory.
+	 *
+	 * @param file Profiler file name.
+	 * @throws IOException
+	 */
+	public MappedProfilerScanner(String file) throws IOException {
+		this(file, MAX_WINDOW);
+	}
+
+	/**
+	 * Scans the profiler file mapping it into memory.
+	 *
+	 * @param file Profiler file name.
+	 * @param window Maximum size, in bytes, of each mapping.
+	 * @throws IOException
+	 */
+	public MappedProfilerScanner(String file, int window) throws IOException {
+		this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		this.size = channel.size();
+		this.window = window;
+	}
+
+	/**
+	 * Maps the next window of the file, starting at the first byte that must be kept.
+	 */
+	@Override
+	protected int fill(int keep) throws IOException {
+		long start = offset + keep;
+		
+		// A single line longer than the current window needs a bigger one.
+		long wanted = (keep == 0 && limit > 0 ? 2L * limit : window);
+		int length = (int) Math.min(Math.min(wanted, MAX_WINDOW), size - start);
+		
+		if (keep == 0 && limit > 0 && length <= limit) {
+			throw new IOException("Profiler line larger than the mapping window at offset " + start);
+		}
+
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		offset = start;
+		limit = length;
+		eof = (start + length >= size);
+
+		return keep;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
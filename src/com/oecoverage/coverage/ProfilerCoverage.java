@@ -1,23 +1,53 @@
 package com.oecoverage.coverage;
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeSet;
 
 public class ProfilerCoverage {
-	private Map<String, Map<Integer, Boolean>> sources = new HashMap<String, Map<Integer, Boolean>>();
-	private Map<Integer, String> dbg = new HashMap<Integer, String>();
+	// Source names interned to ids, and the coverage of each source id.
+	private Map<String, Integer> ids = new HashMap<String, Integer>();
+	private List<String> names = new ArrayList<String>();
+	private List<LineCoverage> sources = new ArrayList<LineCoverage>();
+	
+	// Execution counts and times of each source id, only kept when the timings are enabled.
+	private boolean timed = false;
+	private List<LineTimings> timings = new ArrayList<LineTimings>();
+	
+	// Sources kept, the others are dropped while parsed. Null keeps all the sources.
+	private SourceFilter filter;
+	
+	// Test sessions that covered each line, only kept when the attribution is enabled.
+	private TestAttribution attribution;
+	
+	// Calls between the sources, only kept when the call graph is enabled.
+	private CallGraph callGraph;
+	
+	// Run files where the coverage is moved when it goes over the memory budget.
+	private CoverageSpill spill;
+	private long spillBudget;
+	private long memorySize = 0;
+	private long spillRecords = 0;
+	
+	// Source id of each profiler code number, -1 when the code is unknown.
+	private int[] dbg = new int[0];
 	
 	private static final int PROFILER_BLOCK_INFO = 0;
 	private static final int PROFILER_BLOCK_SOURCES = 1;
 	private static final int PROFILER_BLOCK_CALL_TREE = 2;
 	private static final int PROFILER_BLOCK_COVERAGE = 3;
 	private static final int PROFILER_BLOCK_SOURCES_LINES = 4;
+	
+	// Upper estimate of the memory added by each profiler line, in bytes.
+	private static final int RECORD_MEMORY_SIZE = 64;
 
 	/**
 	 * Reads the provided profiler file and extracts the coverage information.
@@ -26,148 +56,589 @@ public class ProfilerCoverage {
 	 * @throws IOException
 	 */
 	public void readProfiler(String file) throws IOException {
-		String line = null;
+		this.readProfiler(file, false);
+	}
+
+	/**
+	 * Reads the provided profiler file and extracts the coverage information.
+	 *  
+	 * @param file
+	 * @param mapped If the file is memory mapped instead of read through a stream.
+	 * @return Number of profiler lines read.
+	 * @throws IOException
+	 */
+	public long readProfiler(String file, boolean mapped) throws IOException {
+		long records = 0;
+		
+		// Gzip files are decompressed while read, each entry of a zip archive is read as a profiler file.
+		for (ProfilerInput input : ProfilerInput.expand(new File(file))) {
+			records += this.readProfiler(input, mapped);
+		}
+		
+		return records;
+	}
+
+	/**
+	 * Reads the profiler input and extracts the coverage information, through
+	 * the path that suits the content detected when the input was found.
+	 *  
+	 * @param input Profiler file or archive entry.
+	 * @param mapped If a plain file is memory mapped instead of read through a stream.
+	 * @return Number of profiler lines read.
+	 * @throws IOException
+	 */
+	public long readProfiler(ProfilerInput input, boolean mapped) throws IOException {
+		if (mapped && input.isPlain()) {
+			try (ProfilerScanner scanner = new MappedProfilerScanner(input.getName())) {
+				this.readProfiler(input.getName(), scanner);
+				return scanner.getLineCount();
+			}
+		}
+		
+		return this.readProfiler(input.getName(), input.open());
+	}
+
+	/**
+	 * Reads the profiler output from the stream and extracts the coverage information.
+	 *  
+	 * @param name Name of the profiler output, used in the messages.
+	 * @param input Profiler output, already decompressed. It is closed after read.
+	 * @return Number of profiler lines read.
+	 * @throws IOException
+	 */
+	public long readProfiler(String name, InputStream input) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(input, 64 * 1024);
+		
+		// Coverage snapshots are merged as they are, instead of parsed.
+		if (isSnapshot(buffered)) {
+			try (DataInputStream snapshot = new DataInputStream(buffered)) {
+				System.out.println("** Reading coverage snapshot \"" + name + "\" **");
+				long sources = CoverageSnapshot.read(snapshot, this);
+				this.measureSpill();
+				return sources;
+			}
+		}
+		
+		try (ProfilerScanner scanner = new ProfilerScanner(buffered)) {
+			this.readProfiler(name, scanner);
+			return scanner.getLineCount();
+		}
+	}
+
+	private static boolean isSnapshot(BufferedInputStream input) throws IOException {
+		input.mark(4);
 		
-		BufferedReader reader = new BufferedReader(new FileReader(file));
-		Map<Integer, Boolean> source = null;
+		try {
+			int magic = 0;
+			
+			for (int i = 0; i < 4; i++) {
+				int b = input.read();
+				
+				if (b < 0) {
+					return false;
+				}
+				
+				magic = (magic << 8) | b;
+			}
+			
+			return magic == CoverageSnapshot.SNAPSHOT_MAGIC;
+		} finally {
+			input.reset();
+		}
+	}
+
+	/**
+	 * Reads the profiler output and extracts the coverage information.
+	 * 
+	 * @param file Profiler file name.
+	 * @param scanner Scanner of the profiler output.
+	 * @throws IOException
+	 */
+	void readProfiler(String file, ProfilerScanner scanner) throws IOException {
+		LineCoverage source = null;
 
 		int blocks = 0;
 		boolean readingLines = false;
 		
 		// Empty the source list.
-		dbg.clear();
+		Arrays.fill(dbg, -1);
+		
+		if (callGraph != null) {
+			callGraph.startFile();
+		}
+		
+		// Each profiler file is a test session.
+		if (attribution != null) {
+			attribution.startSession(file);
+		}
 
-		while ((line = reader.readLine()) != null) {
-			if (line.equals(".")) {
+		while (scanner.nextLine()) {
+			if (scanner.isBlockSeparator()) {
 				blocks++;
 				
 				source = null;
 				readingLines = false;
-			} else if (!line.isEmpty()){
+			} else if (!scanner.isEmptyLine()){
 				switch (blocks) {
 					case PROFILER_BLOCK_INFO:
 						System.out.println("** Reading profiler file \"" + file + "\" **");
+						
+						if (attribution != null) {
+							attribution.setDescription(this.parseDescription(scanner));
+						}
 						break;
 					case PROFILER_BLOCK_SOURCES:
-						if (!parseSource(line)){
+						if (!parseSource(scanner)){
 							blocks++;
 						}
 						break;
 					case PROFILER_BLOCK_CALL_TREE:
-						this.parseCallTree(line);
+						this.parseCallTree(scanner);
 						break;
 					case PROFILER_BLOCK_COVERAGE:
-						this.parseCoverage(line);
+						this.parseCoverage(scanner);
 						break;
 					default:
 						if (blocks > PROFILER_BLOCK_SOURCES_LINES) {
 							if (!readingLines) {
-								source = this.getLinesSource(line);
+								source = this.getLinesSource(scanner);
 								if(source!=null)
 									readingLines = true;							
 							} else if (source != null) {
-								this.parseLines(line, source);
+								this.parseLines(scanner, source);
 							}
 						}
 					
 				}
-						
-/*				
-				if (blocks == PROFILER_BLOCK_INFO) {
-					System.out.println("** Reading profiler file \"" + file + "\" **");
-				} else if (blocks == PROFILER_BLOCK_SOURCES) {
-					if (!parseSource(line)){
-						blocks++;
-					}
-				} else if (blocks == PROFILER_BLOCK_COVERAGE) {
-					this.parseCoverage(line);
-				} else if (blocks > PROFILER_BLOCK_SOURCES_LINES) {
-					
-					if (!readingLines) {
-						source = this.getLinesSource(line);
-						if(source!=null)
-							readingLines = true;							
-					} else if (source != null) {
-						this.parseLines(line, source);
-					}
-				}
-*/
 			}
 		}
+		
+		this.checkSpill(scanner.getLineCount());
+	}
+
+	/**
+	 * Merges the coverage read by another profiler into this one. A line is
+	 * covered when any of the profilers covered it.
+	 * 
+	 * @param other Profiler coverage to be merged.
+	 */
+	public void merge(ProfilerCoverage other) {
+		for (int id = 0; id < other.sources.size(); id++) {
+			LineCoverage coverage = other.sources.get(id);
+			LineTimings lines = other.timings.get(id);
+			
+			if (coverage != null) {
+				this.getSourceCoverage(this.getSourceId(other.names.get(id))).merge(coverage);
+			}
+			
+			if (lines != null) {
+				this.getSourceTimings(this.getSourceId(other.names.get(id))).merge(lines);
+			}
+		}
+		
+		if (callGraph != null && other.callGraph != null) {
+			callGraph.merge(other.callGraph);
+		}
+		
+		if (attribution != null && other.attribution != null) {
+			attribution.merge(other.attribution);
+		}
+	}
+
+	/**
+	 * If the execution count and times of each line are also kept.
+	 */
+	public boolean isTimed() {
+		return timed;
+	}
+
+	public void setTimed(boolean timed) {
+		this.timed = timed;
+	}
+
+	/**
+	 * Sources kept from the profiler files, or null when all the sources are kept.
+	 */
+	public SourceFilter getSourceFilter() {
+		return filter;
+	}
+
+	public void setSourceFilter(SourceFilter filter) {
+		this.filter = (filter == null || filter.isEmpty() ? null : filter);
+	}
+
+	/**
+	 * Test sessions that covered each line, or null when they are not kept.
+	 */
+	public TestAttribution getAttribution() {
+		return attribution;
+	}
+
+	public void setAttribution(TestAttribution attribution) {
+		this.attribution = attribution;
+	}
+
+	/**
+	 * If the calls between the sources are also kept.
+	 */
+	public boolean isCallGraph() {
+		return callGraph != null;
+	}
+
+	public void setCallGraph(boolean enabled) {
+		this.callGraph = (enabled ? (callGraph != null ? callGraph : new CallGraph()) : null);
+	}
+
+	/**
+	 * Returns the calls between the sources, or null when they are not kept.
+	 */
+	public CallGraph getCallGraph() {
+		return callGraph;
+	}
+
+	/**
+	 * Moves the coverage to run files on disk whenever it goes over the memory
+	 * budget. The spilled coverage is still returned by {@link #getSources()},
+	 * {@link #getCoverage(String)} and {@link #getTimings(String)}, merged with
+	 * the coverage kept in memory.
+	 * 
+	 * @param spill Run files where the coverage is moved.
+	 * @param budget Memory, in bytes, the coverage may use before it is moved.
+	 */
+	public void setSpill(CoverageSpill spill, long budget) {
+		this.spill = spill;
+		this.spillBudget = budget;
+	}
+
+	/**
+	 * Moves the coverage kept in memory to a new run file, when the spill is enabled.
+	 * 
+	 * @throws IOException
+	 */
+	public void spill() throws IOException {
+		if (spill == null) {
+			return;
+		}
+		
+		Set<String> found = new TreeSet<String>();
+		
+		for (int id = 0; id < names.size(); id++) {
+			if (sources.get(id) != null || timings.get(id) != null) {
+				found.add(names.get(id));
+			}
+		}
+		
+		if (!found.isEmpty()) {
+			CoverageSpill.RunWriter run = spill.startRun();
+			
+			for (String name : found) {
+				int id = ids.get(name);
+				run.add(name, sources.get(id), timings.get(id));
+				
+				sources.set(id, null);
+				timings.set(id, null);
+			}
+			
+			run.finish();
+		}
+		
+		this.memorySize = 0;
+		this.spillRecords = 0;
+	}
+
+	/**
+	 * Spills the coverage when it may have gone over the memory budget. The
+	 * memory is only measured again when the lines read since the last measure
+	 * could have reached the budget, so most profiler files are not measured.
+	 * 
+	 * @param records Number of profiler lines just read.
+	 */
+	private void checkSpill(long records) throws IOException {
+		if (spill == null) {
+			return;
+		}
+		
+		spillRecords += records;
+		
+		if (memorySize + spillRecords * RECORD_MEMORY_SIZE < spillBudget) {
+			return;
+		}
+		
+		this.measureSpill();
+	}
+
+	/**
+	 * Measures the memory used by the coverage, spilling it when it is over the budget.
+	 */
+	private void measureSpill() throws IOException {
+		if (spill == null) {
+			return;
+		}
+		
+		this.memorySize = 0;
+		this.spillRecords = 0;
+		
+		for (int id = 0; id < names.size(); id++) {
+			if (sources.get(id) != null) {
+				memorySize += sources.get(id).getMemorySize();
+			}
+			if (timings.get(id) != null) {
+				memorySize += timings.get(id).getMemorySize();
+			}
+		}
+		
+		if (memorySize > spillBudget) {
+			this.spill();
+		}
+	}
 
-		reader.close();
+	/**
+	 * Merges the coverage and timings of a source, as read from a snapshot. The
+	 * timings are ignored when they are not kept.
+	 * 
+	 * @param source Source name.
+	 * @param coverage Executable and covered lines, or null.
+	 * @param timings Execution count and times of the lines, or null.
+	 */
+	void add(String source, LineCoverage coverage, LineTimings timings) {
+		if (filter != null && !filter.accept(source)) {
+			return;
+		}
+		
+		int id = this.getSourceId(source);
+		
+		if (coverage != null) {
+			this.getSourceCoverage(id).merge(coverage);
+		}
+		
+		if (timings != null && timed) {
+			this.getSourceTimings(id).merge(timings);
+		}
 	}
 
+	/**
+	 * Returns the names of the sources with executable lines, in alphabetical order.
+	 */
 	public Set<String> getSources() {
-		return sources.keySet();
+		Set<String> found = new TreeSet<String>();
+		
+		for (int id = 0; id < sources.size(); id++) {
+			if (sources.get(id) != null) {
+				found.add(names.get(id));
+			}
+		}
+		
+		if (spill != null) {
+			found.addAll(spill.getSources());
+		}
+		
+		return found;
+	}
+
+	/**
+	 * Returns the names of the sources with timings, in alphabetical order.
+	 */
+	public Set<String> getTimedSources() {
+		Set<String> found = new TreeSet<String>();
+		
+		for (int id = 0; id < timings.size(); id++) {
+			if (timings.get(id) != null) {
+				found.add(names.get(id));
+			}
+		}
+		
+		if (spill != null) {
+			found.addAll(spill.getTimedSources());
+		}
+		
+		return found;
+	}
+
+	/**
+	 * Returns the execution count and times of the lines of the source.
+	 * 
+	 * @param source Source name.
+	 * @return Timings of the source, or null if they were not kept or the source was not executed.
+	 * @throws IOException
+	 */
+	public LineTimings getTimings(String source) throws IOException {
+		Integer id = ids.get(source);
+		LineTimings lines = (id == null ? null : timings.get(id));
+		
+		if (spill == null) {
+			return lines;
+		}
+		
+		LineTimings merged = new LineTimings();
+		
+		if (lines != null) {
+			merged.merge(lines);
+		}
+		
+		return (spill.read(source, null, merged) || lines != null ? merged : null);
+	}
+
+	/**
+	 * Returns a read-only view of the executable and covered lines of the source.
+	 * 
+	 * @param source Source name.
+	 * @return Coverage of the source, or null if the source has no executable lines.
+	 * @throws IOException
+	 */
+	public LineCoverage getCoverage(String source) throws IOException {
+		Integer id = ids.get(source);
+		LineCoverage coverage = (id == null ? null : sources.get(id));
+		
+		if (spill != null) {
+			// The spilled lines are merged into a copy, so the coverage in memory is not changed.
+			LineCoverage merged = new LineCoverage();
+			
+			if (coverage != null) {
+				merged.merge(coverage);
+			}
+			
+			coverage = (spill.read(source, merged, null) || coverage != null ? merged : null);
+		}
+		
+		return (coverage == null ? null : coverage.view());
+	}
+
+	/**
+	 * Returns the id of the source name, interning it when it is not known yet.
+	 */
+	private int getSourceId(String name) {
+		Integer id = ids.get(name);
+		
+		if (id == null) {
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+			sources.add(null);
+			timings.add(null);
+		}
+		
+		return id;
+	}
+
+	/**
+	 * Returns the coverage of the source id, creating it when it does not exist yet.
+	 */
+	private LineCoverage getSourceCoverage(int id) {
+		LineCoverage coverage = sources.get(id);
+		
+		if (coverage == null) {
+			coverage = new LineCoverage();
+			sources.set(id, coverage);
+		}
+		
+		return coverage;
+	}
+
+	/**
+	 * Returns the timings of the source id, creating them when they do not exist yet.
+	 */
+	private LineTimings getSourceTimings(int id) {
+		LineTimings lines = timings.get(id);
+		
+		if (lines == null) {
+			lines = new LineTimings();
+			timings.set(id, lines);
+		}
+		
+		return lines;
 	}
 
-	public Map<Integer, Boolean> getCoverageInfo(String source) {
-		return sources.get(source);
+	/**
+	 * Returns the source name of the profiler code number, or null if the code is unknown.
+	 */
+	private String getCodeName(int codeno) {
+		return (codeno >= 0 && codeno < dbg.length && dbg[codeno] >= 0 ? names.get(dbg[codeno]) : null);
+	}
+
+	/**
+	 * Returns the coverage of the profiler code number, or null if the code is unknown.
+	 */
+	private LineCoverage getCodeCoverage(int codeno) {
+		return (codeno >= 0 && codeno < dbg.length && dbg[codeno] >= 0 ? this.getSourceCoverage(dbg[codeno]) : null);
+	}
+	
+	/**
+	 * Parses the description of the profiler session.
+	 * @param scanner Scanner positioned on the line containing the session information.
+	 * @return Session description, empty when there is none.
+	 * 
+	 * {@code example: "0 06/26/2018 "Customer tests" 18:00:00 "user""}
+	 */
+	private String parseDescription(ProfilerScanner scanner) {
+		String line = scanner.getLine();
+		int start = line.indexOf('"');
+		int end = (start != -1 ? line.indexOf('"', start + 1) : -1);
+		
+		return (end != -1 ? line.substring(start + 1, end).trim() : "");
 	}
 	
 	/**
 	 * Parses the source line extracted from the profiler.
-	 * @param sourceLine Line extracted from the profiler containing the source code information.
+	 * @param scanner Scanner positioned on the line containing the source code information.
+	 * @return if the line contains the source information
 	 * 
 	 * {@code example: "698 "remove-all-links adm/objects/broker.p" "" 0"}
 	 */
-	private boolean parseSource(String sourceLine) {
-		Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(sourceLine);
-
+	private boolean parseSource(ProfilerScanner scanner) {
 		// Get the source ID information.
-		matcher.find();
-		int codeno = Integer.valueOf(matcher.group(2));
+		if (!scanner.hasInt()) {
+			return false;
+		}
+		
+		int codeno = scanner.readInt();
 
 		// Get the source path information.
-		matcher.find();
-		try{
-			String list[] = matcher.group(1).split(" ");
-			// Add the found source information to the list.
-			dbg.put(codeno, list[list.length - 1].replace("\\", "/"));
-		}catch (Exception e) {
-			e.printStackTrace();
+		String name = scanner.readString();
+		
+		if (name == null || codeno < 0) {
+			System.out.println("** Invalid profiler source \"" + scanner.getLine() + "\" **");
 			return false;
-		}		
+		}
+		
+		name = name.trim();
+		name = name.substring(name.lastIndexOf(' ') + 1);
+		
+		// Add the found source information to the list.
+		if (codeno >= dbg.length) {
+			int length = dbg.length;
+			dbg = Arrays.copyOf(dbg, Math.max(codeno + 1, length * 2));
+			Arrays.fill(dbg, length, dbg.length, -1);
+		}
+		
+		name = name.replace("\\", "/");
+		
+		// A source filtered out stays unknown, so its lines are skipped while parsed.
+		dbg[codeno] = (filter == null || filter.accept(name) ? this.getSourceId(name) : -1);
+		
 		return true;
 	}
 
 	/**
-	 * Parses the coverage line extracted from the profiler.
-	 * @param coverageLine Line extracted from the profiler containing the coverage information.
+	 * Parses the call tree line extracted from the profiler, marking the caller line as covered.
+	 * @param scanner Scanner positioned on the line containing the call tree information.
 	 * @return if successful in covering the line
 	 *
 	 * {@code example: "21 1618 39 1"}
 	 */
-	private boolean parseCallTree(String callTreeLine) {
-		String filename;
-		String[] splitted = callTreeLine.split(" ");
-		
-		Map<Integer, Boolean> source = null;
-		
-		int lineno = 0;
-		int codeno = 0;
-		
-		if (splitted.length == 4 && !splitted[0].trim().equals("") && !splitted[1].trim().equals("")) {
-			codeno = Integer.valueOf(splitted[0].trim());
-			lineno = Integer.valueOf(splitted[1].trim());
-
-			if (lineno > 0) {
-				// Recover the covered source from the list.
-				filename = dbg.get(codeno);
-				source = sources.get(filename);
+	private boolean parseCallTree(ProfilerScanner scanner) {
+		if (scanner.countTokens() == 4) {
+			int caller = scanner.readInt();
+			int lineno = scanner.readInt();
+			
+			this.cover(caller, lineno);
+			
+			if (callGraph != null) {
+				String callerName = this.getCodeName(caller);
+				int callee = scanner.readInt();
+				String calleeName = this.getCodeName(callee);
 				
-				if(filename != null){
-					// Creates the source covered lines list and adds the covered line.
-					if (source == null) {
-						source = new TreeMap<Integer, Boolean>();
-						sources.put(filename, source);
-					}
-					
-					// If the coverage line still doesn't exist or it's false, creates the new as true.
-					if (!source.containsKey(lineno) || !source.get(lineno)) {
-						source.put(lineno, true);
-					}
+				if (callerName != null && calleeName != null) {
+					callGraph.add(callerName, lineno, calleeName, scanner.readInt());
 				}
 			}
 			
@@ -179,40 +650,31 @@ public class ProfilerCoverage {
 
 	/**
 	 * Parses the coverage line extracted from the profiler.
-	 * @param coverageLine Line extracted from the profiler containing the coverage information.
+	 * @param scanner Scanner positioned on the line containing the coverage information.
 	 * @return if successful in covering the line
 	 *
 	 * {@code example: "32 1974 1 0.000496 0.000496"}
 	 */
-	private boolean parseCoverage(String coverageLine) {
-		String filename;
-		String[] splitted = coverageLine.split(" ");
-		
-		Map<Integer, Boolean> source = null;
-		
-		int lineno = 0;
-		int codeno = 0;
-		
-		if (splitted.length == 5 && !splitted[0].trim().equals("") && !splitted[1].trim().equals("")) {
-			codeno = Integer.valueOf(splitted[0].trim());
-			lineno = Integer.valueOf(splitted[1].trim());
-
-			if (lineno > 0) {
-				// Recover the covered source from the list.
-				filename = dbg.get(codeno);
-				source = sources.get(filename);
+	private boolean parseCoverage(ProfilerScanner scanner) {
+		if (scanner.countTokens() == 5) {
+			int codeno = scanner.readInt();
+			int lineno = scanner.readInt();
+			
+			this.cover(codeno, lineno);
+			
+			// Execution count, actual time and cumulative time of the line.
+			if ((timed || callGraph != null) && lineno > 0 && codeno >= 0 && codeno < dbg.length && dbg[codeno] >= 0) {
+				int hits = scanner.readInt();
+				double actual = scanner.readDouble();
+				double cumulative = scanner.readDouble();
 				
-				if(filename != null){
-					// Creates the source covered lines list and adds the covered line.
-					if (source == null) {
-						source = new TreeMap<Integer, Boolean>();
-						sources.put(filename, source);
-					}
-					
-					// If the coverage line still doesn't exist or it's false, creates the new as true.
-					if (!source.containsKey(lineno) || !source.get(lineno)) {
-						source.put(lineno, true);
-					}
+				if (timed) {
+					this.getSourceTimings(dbg[codeno]).add(lineno, hits, actual, cumulative);
+				}
+				
+				// The time of a line that calls other sources is the time of its calls.
+				if (callGraph != null) {
+					callGraph.addTime(names.get(dbg[codeno]), lineno, cumulative);
 				}
 			}
 			
@@ -221,53 +683,54 @@ public class ProfilerCoverage {
 		
 		return false;
 	}
+
+	/**
+	 * Marks the line of the profiler code number as covered.
+	 */
+	private void cover(int codeno, int lineno) {
+		if (lineno > 0) {
+			// Recover the covered source from the list and adds the covered line.
+			LineCoverage source = this.getCodeCoverage(codeno);
+			
+			if (source != null) {
+				source.add(lineno, true);
+				
+				if (attribution != null) {
+					attribution.cover(names.get(dbg[codeno]), lineno);
+				}
+			}
+		}
+	}
 	
 	/**
 	 * Returns the source object encountered for the informed line.
 	 * 
-	 * @param line Line containing the information about the source ID.
+	 * @param scanner Scanner positioned on the line containing the information about the source ID.
 	 * @return Source object for the informed line.
 	 * 
 	 * {@code example: "319 "" 22"}
 	 */
-	private Map<Integer, Boolean> getLinesSource(String line) {
-		Matcher matcher = Pattern.compile("\"([^\"]*)\"|(\\S+)").matcher(line);
-		Map<Integer, Boolean> source = null;
-		
-		int codeno;
-		String filename;
-
-		if (matcher.groupCount() == 3 && matcher.find()) {
-			// Get the source ID information.
-			codeno = Integer.valueOf(matcher.group(2));
-			filename = dbg.get(codeno);
-			
+	private LineCoverage getLinesSource(ProfilerScanner scanner) {
+		if (scanner.countTokens() == 3 && scanner.hasInt()) {
 			// Get the source from the list.
-			source = sources.get(filename);
-			
-			if (source == null && filename != null) {
-				source = new TreeMap<Integer, Boolean>();
-				sources.put(filename, source);
-			}
+			return this.getCodeCoverage(scanner.readInt());
 		}
 		
-		return source;
+		return null;
 	}
 	
 	/**
 	 * Parses the executable source code line encountered for the informed line.
-	 * @param line Line containing the information about the executable source code line.
+	 * @param scanner Scanner positioned on the line containing the information about the executable source code line.
 	 * @param source List of the source's executable lines for the current source.
 	 * 
 	 * {@code example: "38"}
 	 */
-	private void parseLines(String line, Map<Integer, Boolean> source) {
-		int lineno = Integer.valueOf(line);
+	private void parseLines(ProfilerScanner scanner, LineCoverage source) {
+		int lineno = scanner.readInt();
 
 		if (lineno > 0) {
-			if (!source.containsKey(lineno)) {
-				source.put(lineno, false);
-			}
+			source.add(lineno, false);
 		}
 	}
 }
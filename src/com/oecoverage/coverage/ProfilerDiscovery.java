@@ -0,0 +1,285 @@
+package com.oecoverage.coverage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the profiler files under one or more roots, optionally walking the
+ * directory trees recursively and in parallel. The files are selected by the
+ * glob filter, relative to their root, or by the ".out" in their names when
+ * there are no include patterns. Zip archives and coverage snapshots are also
+ * accepted by default, each entry of an archive, selected by the same rules,
+ * is a profiler input.
+ */
+public class ProfilerDiscovery {
+	private List<File> roots = new ArrayList<File>();
+	private boolean recursive;
+	private boolean parallel;
+	private GlobFilter filter;
+
+	/**
+	 * @param roots Profiler files or directories.
+	 * @param recursive If the subdirectories are also walked.
+	 * @param parallel If the subdirectories are walked in parallel.
+	 * @param filter Patterns of the profiler files.
+	 */
+	public ProfilerDiscovery(List<String> roots, boolean recursive, boolean parallel, GlobFilter filter) {
+		for (String root : roots) {
+			File file = new File(root);
+
+			if (!file.exists()) {
+				throw new RuntimeException("Informed file or path \"" + file + "\" does not exists");
+			}
+
+			this.roots.add(file);
+		}
+
+		this.recursive = recursive;
+		this.parallel = parallel;
+		this.filter = filter;
+	}
+
+	/**
+	 * Finds all the profiler files.
+	 *
+	 * @return Files found, sorted by path.
+	 */
+	public List<File> find() {
+		List<File> files = new ArrayList<File>();
+		BlockingQueue<ProfilerInput> queue = new LinkedBlockingQueue<ProfilerInput>();
+
+		this.walk(queue, false);
+
+		for (ProfilerInput input : queue) {
+			files.add(input.getFile());
+		}
+
+		Collections.sort(files);
+
+		return files;
+	}
+
+	/**
+	 * Profiler files or directories where the files are found.
+	 */
+	public List<File> getRoots() {
+		return roots;
+	}
+
+	/**
+	 * If the subdirectories of the roots are also walked.
+	 */
+	public boolean isRecursive() {
+		return recursive;
+	}
+
+	/**
+	 * If a file would be found by the discovery: it is one of the roots, or it
+	 * is under a root directory, directly when the walk is not recursive, and it
+	 * is accepted by the filter.
+	 *
+	 * @param file Profiler file.
+	 */
+	public boolean accept(File file) {
+		Path path = file.getAbsoluteFile().toPath().normalize();
+
+		for (File root : roots) {
+			Path start = root.getAbsoluteFile().toPath().normalize();
+
+			if (!root.isDirectory()) {
+				if (start.equals(path)) {
+					return this.accept(root.getName());
+				}
+			} else if (path.startsWith(start) && !path.equals(start) && (recursive || start.equals(path.getParent())) && this.accept(start, path)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the profiler inputs of a file found, one for each accepted entry of a zip archive.
+	 *
+	 * @param file Profiler file or zip archive.
+	 * @return Inputs of the file.
+	 */
+	public List<ProfilerInput> expand(File file) {
+		List<ProfilerInput> inputs = new ArrayList<ProfilerInput>();
+
+		try {
+			for (ProfilerInput input : ProfilerInput.expand(file)) {
+				if (input.getEntry() == null || this.accept(input.getEntry())) {
+					inputs.add(input);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("** Error reading profiler archive \"" + file + "\" - Exception: " + e.getMessage());
+		}
+
+		return inputs;
+	}
+
+	/**
+	 * Starts finding the profiler files in a background thread. Their inputs are
+	 * put in the returned queue as soon as they are found, followed by
+	 * {@link ProfilerInput#END}.
+	 *
+	 * @return Queue of the inputs found.
+	 */
+	public BlockingQueue<ProfilerInput> start() {
+		final BlockingQueue<ProfilerInput> queue = new LinkedBlockingQueue<ProfilerInput>();
+
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					walk(queue, true);
+				} finally {
+					queue.add(ProfilerInput.END);
+				}
+			}
+		}, "profiler-discovery");
+
+		thread.setDaemon(true);
+		thread.start();
+
+		return queue;
+	}
+
+	/**
+	 * Walks the roots, putting the inputs of the accepted files in the queue.
+	 *
+	 * @param queue Queue of the inputs found.
+	 * @param expand If the entries of the zip archives are put in the queue, instead of the archives.
+	 */
+	private void walk(final BlockingQueue<ProfilerInput> queue, final boolean expand) {
+		for (final File root : roots) {
+			if (!root.isDirectory()) {
+				if (this.accept(root.getName())) {
+					this.add(queue, root, expand);
+				}
+				continue;
+			}
+
+			final Path start = root.toPath();
+
+			if (recursive && parallel) {
+				ForkJoinPool.commonPool().invoke(new DirectoryWalk(start, start, queue, expand, ConcurrentHashMap.<Object>newKeySet()));
+				continue;
+			}
+
+			try {
+				Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), (recursive ? Integer.MAX_VALUE : 1), new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (attrs.isRegularFile() && accept(start, file)) {
+							add(queue, file.toFile(), expand);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException e) {
+						System.out.println("** Error reading profiler directory \"" + file + "\" - Exception: " + e.getMessage());
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			} catch (IOException e) {
+				System.out.println("** Error reading profiler directory \"" + root + "\" - Exception: " + e.getMessage());
+			}
+		}
+	}
+
+	private void add(BlockingQueue<ProfilerInput> queue, File file, boolean expand) {
+		if (expand) {
+			queue.addAll(this.expand(file));
+		} else {
+			queue.add(new ProfilerInput(file));
+		}
+	}
+
+	private boolean accept(Path root, Path file) {
+		return this.accept(root.relativize(file).toString());
+	}
+
+	private boolean accept(String path) {
+		if (!filter.hasIncludes()) {
+			String name = path.substring(path.replace('\\', '/').lastIndexOf('/') + 1);
+			String lower = name.toLowerCase(Locale.ROOT);
+
+			if (name.indexOf(".out") <= 0 && !lower.endsWith(".zip") && !lower.endsWith(CoverageSnapshot.SNAPSHOT_EXTENSION) && !lower.endsWith(CoverageSnapshot.SNAPSHOT_EXTENSION + ".gz")) {
+				return false;
+			}
+		}
+
+		return filter.accept(path);
+	}
+
+	/**
+	 * Walks a directory, walking its subdirectories in parallel.
+	 */
+	private class DirectoryWalk extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private Path root;
+		private Path directory;
+		private BlockingQueue<ProfilerInput> queue;
+		private boolean expand;
+		private Set<Object> visited;
+
+		DirectoryWalk(Path root, Path directory, BlockingQueue<ProfilerInput> queue, boolean expand, Set<Object> visited) {
+			this.root = root;
+			this.directory = directory;
+			this.queue = queue;
+			this.expand = expand;
+			this.visited = visited;
+		}
+
+		@Override
+		protected void compute() {
+			List<DirectoryWalk> walks = new ArrayList<DirectoryWalk>();
+
+			try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+				for (Path child : children) {
+					BasicFileAttributes attrs;
+
+					try {
+						attrs = Files.readAttributes(child, BasicFileAttributes.class);
+					} catch (IOException e) {
+						continue;
+					}
+
+					if (attrs.isDirectory()) {
+						if (attrs.fileKey() == null || visited.add(attrs.fileKey())) {
+							walks.add(new DirectoryWalk(root, child, queue, expand, visited));
+						}
+					} else if (attrs.isRegularFile() && accept(root, child)) {
+						add(queue, child.toFile(), expand);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("** Error reading profiler directory \"" + directory + "\" - Exception: " + e.getMessage());
+			}
+
+			invokeAll(walks);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A profiler output to be read: a plain or gzip compressed file, or an entry of
+ * a zip archive. The compression is detected by the first bytes of the file,
+ * not by its name, and the content is decompressed while it is parsed.
+ */
+public class ProfilerInput {
+	/**
+	 * Marks the end of the inputs in a queue.
+	 */
+	public static final ProfilerInput END = new ProfilerInput(null, null, 0);
+
+	private static final int GZIP_MAGIC = 0x1F8B;
+	private static final int ZIP_MAGIC = 0x504B0304;
+
+	// Content of the input, detected once by its first bytes.
+	private static final int TYPE_UNKNOWN = -1;
+	private static final int TYPE_PLAIN = 0;
+	private static final int TYPE_GZIP = 1;
+	private static final int TYPE_SNAPSHOT = 2;
+	private static final int TYPE_ENTRY = 3;
+
+	private File file;
+	private String entry;
+	private long size;
+	private int type;
+
+	/**
+	 * @param file Profiler file, plain or gzip compressed. Its content is only
+	 * detected when it is read.
+	 */
+	public ProfilerInput(File file) {
+		this(file, null, file.length());
+	}
+
+	/**
+	 * @param file Zip archive.
+	 * @param entry Name of the profiler entry in the archive.
+	 * @param size Compressed size of the entry.
+	 */
+	public ProfilerInput(File file, String entry, long size) {
+		this.file = file;
+		this.entry = entry;
+		this.size = size;
+		this.type = (entry != null ? TYPE_ENTRY : TYPE_UNKNOWN);
+	}
+
+	private ProfilerInput(File file, int type) {
+		this(file, null, file.length());
+		this.type = type;
+	}
+
+	/**
+	 * Returns the inputs of the file, one for each entry of a zip archive.
+	 *
+	 * @param file Profiler file or zip archive.
+	 * @return Inputs found.
+	 * @throws IOException
+	 */
+	public static List<ProfilerInput> expand(File file) throws IOException {
+		List<ProfilerInput> inputs = new ArrayList<ProfilerInput>();
+		int magic = readMagic(file, 4);
+
+		// The first bytes are read once, the content of the file is kept in the input.
+		if (magic != ZIP_MAGIC) {
+			inputs.add(new ProfilerInput(file, getType(magic)));
+			return inputs;
+		}
+
+		try (ZipFile zip = new ZipFile(file)) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+
+				if (!entry.isDirectory()) {
+					inputs.add(new ProfilerInput(file, entry.getName(), entry.getCompressedSize()));
+				}
+			}
+		}
+
+		return inputs;
+	}
+
+	/**
+	 * If the file is a zip archive.
+	 */
+	public static boolean isZip(File file) throws IOException {
+		return readMagic(file, 4) == ZIP_MAGIC;
+	}
+
+	/**
+	 * If the file is gzip compressed.
+	 */
+	public static boolean isGzip(File file) throws IOException {
+		return readMagic(file, 2) == GZIP_MAGIC;
+	}
+
+	/**
+	 * If the file is a coverage snapshot, not compressed.
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		return readMagic(file, 4) == CoverageSnapshot.SNAPSHOT_MAGIC;
+	}
+
+	private static int getType(int magic) {
+		if ((magic >>> 16) == GZIP_MAGIC) {
+			return TYPE_GZIP;
+		}
+
+		return (magic == CoverageSnapshot.SNAPSHOT_MAGIC ? TYPE_SNAPSHOT : TYPE_PLAIN);
+	}
+
+	/**
+	 * Content of the input, detected on the first call for the inputs not found by {@link #expand(File)}.
+	 */
+	private int getType() throws IOException {
+		if (type == TYPE_UNKNOWN) {
+			type = getType(readMagic(file, 4));
+		}
+
+		return type;
+	}
+
+	private static int readMagic(File file, int length) throws IOException {
+		int magic = 0;
+
+		try (InputStream input = new FileInputStream(file)) {
+			for (int i = 0; i < length; i++) {
+				int b = input.read();
+
+				if (b < 0) {
+					return -1;
+				}
+
+				magic = (magic << 8) | b;
+			}
+		}
+
+		return magic;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Name of the entry in the zip archive, or null for a file.
+	 */
+	public String getEntry() {
+		return entry;
+	}
+
+	/**
+	 * Name of the input, with the entry name after "!/" for zip entries.
+	 */
+	public String getName() {
+		return (entry == null ? file.getAbsolutePath() : file.getAbsolutePath() + "!/" + entry);
+	}
+
+	/**
+	 * Size of the input as stored, compressed or not.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * If the input is a plain profiler file, that can be memory mapped.
+	 */
+	public boolean isPlain() throws IOException {
+		return this.getType() == TYPE_PLAIN;
+	}
+
+	/**
+	 * Opens the input, decompressing it while it is read.
+	 *
+	 * @return Content of the profiler output.
+	 * @throws IOException
+	 */
+	public InputStream open() throws IOException {
+		if (entry == null) {
+			if (this.getType() != TYPE_GZIP) {
+				return new FileInputStream(file);
+			}
+			
+			InputStream input = new FileInputStream(file);
+			
+			try {
+				return new GZIPInputStream(input, 64 * 1024);
+			} catch (IOException e) {
+				input.close();
+				throw e;
+			}
+		}
+
+		final ZipFile zip = new ZipFile(file);
+		ZipEntry found = zip.getEntry(entry);
+
+		if (found == null) {
+			zip.close();
+			throw new IOException("Entry \"" + entry + "\" not found in \"" + file + "\"");
+		}
+
+		// Each input opens its own archive, so the entries can be read concurrently.
+		InputStream input = new FilterInputStream(zip.getInputStream(found)) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					zip.close();
+				}
+			}
+		};
+
+		// An entry may be a gzip compressed profiler output itself, as "x.out.gz".
+		try {
+			return decompress(input);
+		} catch (IOException e) {
+			input.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Decompresses a profiler output read from a stream, when it is gzip compressed.
+	 *
+	 * @param input Profiler output, gzip compressed or not.
+	 * @return Content of the profiler output.
+	 * @throws IOException
+	 */
+	public static InputStream decompress(InputStream input) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(input, 64 * 1024);
+		buffered.mark(2);
+		int magic = (buffered.read() << 8) | buffered.read();
+		buffered.reset();
+
+		return (magic == GZIP_MAGIC ? new GZIPInputStream(buffered, 64 * 1024) : buffered);
+	}
+
+	@Override
+	public String toString() {
+		return this.getName();
+	}
+}
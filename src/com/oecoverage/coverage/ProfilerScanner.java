@@ -0,0 +1,328 @@
+package com.oecoverage.coverage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Line oriented scanner of the profiler output. Numbers, quoted strings and the
+ * "." block separators are read straight from a reused byte buffer, only the
+ * quoted strings are decoded.
+ */
+public class ProfilerScanner implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private InputStream input;
+	private Charset charset = Charset.defaultCharset();
+
+	protected ByteBuffer buffer;
+	protected int limit = 0;
+	protected boolean eof = false;
+
+	private int lineStart = 0;
+	private int lineEnd = -1;
+	private int end = 0;
+	private int position = 0;
+	private long lines = 0;
+
+	/**
+	 * Scans the profiler output read from the informed stream.
+	 *
+	 * @param input Profiler output. It is closed with the scanner.
+	 */
+	public ProfilerScanner(InputStream input) {
+		this.input = input;
+		this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	}
+
+	protected ProfilerScanner() {
+	}
+
+	/**
+	 * Moves to the next line of the profiler output.
+	 *
+	 * @return false when there are no more lines.
+	 * @throws IOException
+	 */
+	public boolean nextLine() throws IOException {
+		int start = lineEnd + 1;
+		int scan = start;
+
+		while (true) {
+			while (scan < limit && buffer.get(scan) != '\n') {
+				scan++;
+			}
+
+			if (scan < limit) {
+				break;
+			}
+
+			if (eof) {
+				if (start >= limit) {
+					return false;
+				}
+				break;
+			}
+
+			// The line continues after the available bytes, gets more keeping it.
+			int shift = this.fill(start);
+			start -= shift;
+			scan -= shift;
+		}
+
+		lineStart = start;
+		lineEnd = scan;
+		end = (scan > start && buffer.get(scan - 1) == '\r' ? scan - 1 : scan);
+		position = start;
+		lines++;
+
+		return true;
+	}
+
+	/**
+	 * Makes more bytes available after the limit.
+	 *
+	 * @param keep First position that must be kept in the buffer.
+	 * @return Number of positions the kept bytes were moved back.
+	 * @throws IOException
+	 */
+	protected int fill(int keep) throws IOException {
+		byte[] bytes = buffer.array();
+		int remaining = limit - keep;
+
+		if (keep == 0 && limit == bytes.length) {
+			// A single line fills the whole buffer.
+			ByteBuffer bigger = ByteBuffer.allocate(bytes.length * 2);
+			System.arraycopy(bytes, 0, bigger.array(), 0, limit);
+			buffer = bigger;
+			bytes = bigger.array();
+		} else if (keep > 0) {
+			System.arraycopy(bytes, keep, bytes, 0, remaining);
+		}
+
+		limit = remaining;
+		int read = input.read(bytes, limit, bytes.length - limit);
+
+		if (read < 0) {
+			eof = true;
+		} else {
+			limit += read;
+		}
+
+		return keep;
+	}
+
+	/**
+	 * If the current line is the "." block separator.
+	 */
+	public boolean isBlockSeparator() {
+		return end - lineStart == 1 && buffer.get(lineStart) == '.';
+	}
+
+	public boolean isEmptyLine() {
+		return end == lineStart;
+	}
+
+	/**
+	 * Counts the space separated tokens of the current line, without moving.
+	 */
+	public int countTokens() {
+		int count = 0;
+		boolean quoted = false;
+		boolean token = false;
+
+		for (int i = lineStart; i < end; i++) {
+			byte b = buffer.get(i);
+
+			if (quoted) {
+				quoted = (b != '"');
+			} else if (b == ' ' || b == '\t') {
+				token = false;
+			} else {
+				if (!token) {
+					count++;
+					token = true;
+				}
+				quoted = (b == '"');
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * If the next token of the current line is an integer number.
+	 */
+	public boolean hasInt() {
+		this.skipSpaces();
+
+		int i = position;
+
+		if (i < end && buffer.get(i) == '-') {
+			i++;
+		}
+
+		int digits = i;
+
+		while (i < end && isDigit(buffer.get(i))) {
+			i++;
+		}
+
+		return i > digits && (i == end || isSpace(buffer.get(i)));
+	}
+
+	/**
+	 * Reads the next token of the current line as an integer number.
+	 *
+	 * @return Number read.
+	 * @throws NumberFormatException if the token is not a number.
+	 */
+	public int readInt() {
+		if (!this.hasInt()) {
+			throw new NumberFormatException("Invalid number at \"" + this.getLine() + "\"");
+		}
+
+		boolean negative = (buffer.get(position) == '-');
+		int value = 0;
+
+		if (negative) {
+			position++;
+		}
+
+		while (position < end && isDigit(buffer.get(position))) {
+			value = value * 10 + (buffer.get(position++) - '0');
+		}
+
+		return (negative ? -value : value);
+	}
+
+	/**
+	 * Reads the next token of the current line as a decimal number, like the
+	 * "0.000496" times of the profiler.
+	 *
+	 * @return Number read.
+	 * @throws NumberFormatException if the token is not a number.
+	 */
+	public double readDouble() {
+		this.skipSpaces();
+
+		int start = position;
+		boolean negative = (position < end && buffer.get(position) == '-');
+		long value = 0;
+		long scale = 1;
+		int digits = 0;
+
+		if (negative) {
+			position++;
+		}
+
+		while (position < end && isDigit(buffer.get(position)) && digits < 18) {
+			value = value * 10 + (buffer.get(position++) - '0');
+			digits++;
+		}
+
+		if (position < end && buffer.get(position) == '.') {
+			position++;
+
+			while (position < end && isDigit(buffer.get(position)) && digits < 18) {
+				value = value * 10 + (buffer.get(position++) - '0');
+				scale *= 10;
+				digits++;
+			}
+		}
+
+		if (digits > 0 && (position == end || isSpace(buffer.get(position)))) {
+			return (negative ? -value : value) / (double) scale;
+		}
+
+		// Exponents and longer numbers are left to the JDK.
+		while (position < end && !isSpace(buffer.get(position))) {
+			position++;
+		}
+
+		return Double.parseDouble(this.decode(start, position));
+	}
+
+	/**
+	 * If the next token of the current line is a quoted string.
+	 */
+	public boolean hasString() {
+		this.skipSpaces();
+		return position < end && buffer.get(position) == '"';
+	}
+
+	/**
+	 * Reads the next quoted string of the current line, without the quotes.
+	 *
+	 * @return String read, or null when the next token is not a quoted string.
+	 */
+	public String readString() {
+		if (!this.hasString()) {
+			return null;
+		}
+
+		int start = ++position;
+
+		while (position < end && buffer.get(position) != '"') {
+			position++;
+		}
+
+		String text = this.decode(start, position);
+
+		if (position < end) {
+			position++;
+		}
+
+		return text;
+	}
+
+	/**
+	 * Number of lines read until now.
+	 */
+	public long getLineCount() {
+		return lines;
+	}
+
+	/**
+	 * Returns the current line as a String, used only in error messages.
+	 */
+	public String getLine() {
+		return this.decode(lineStart, end);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (input != null) {
+			input.close();
+		}
+	}
+
+	private String decode(int start, int stop) {
+		if (buffer.hasArray()) {
+			return new String(buffer.array(), buffer.arrayOffset() + start, stop - start, charset);
+		}
+
+		byte[] bytes = new byte[stop - start];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+
+		return new String(bytes, charset);
+	}
+
+	private void skipSpaces() {
+		while (position < end && isSpace(buffer.get(position))) {
+			position++;
+		}
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+}
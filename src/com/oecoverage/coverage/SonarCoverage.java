@@ -1,20 +1,58 @@
 package com.oecoverage.coverage;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
 
 public class SonarCoverage {
-	private ProfilerCoverage profiler = new ProfilerCoverage();
+	private ProfilerCoverage profiler;
 	private String listingPath;
 	private String sourcePath;
+	private CoverageOptions options;
+	private ListingCache listingCache;
+	private ListingIndex listingIndex;
+	private IncrementalState state;
+	private List<File> profilerFiles;
+	private CoverageSpill spill;
+	private ExecutorService executor;
+	private CoverageMetrics metrics = new CoverageMetrics();
+	private ProfilerDiscovery discovery;
+	private SourceFilter sourceFilter;
+	private TestIndex testIndex;
+	private Map<File, Long> readFiles = new ConcurrentHashMap<File, Long>();
+	private CoverageEngine engine;
 	
 	/**
 	 * Generate a SONARQube Coverage XML from the provided information.
@@ -23,19 +61,70 @@ public class SonarCoverage {
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
-		if (args.length < 3) {
-			System.out.println("Usage: SonarCoverage <profiler> <listing path> <sonar data file> [sonar source path]");
+		CoverageOptions options = new CoverageOptions();
+		List<String> params = options.parse(args);
+		
+		if (params.size() == 1 && options.getSnapshot() != null) {
+			SonarCoverage sonar = new SonarCoverage(params.get(0), null, "", options);
+			
+			try {
+				sonar.writeSnapshot(options.getSnapshot());
+			} finally {
+				sonar.close();
+			}
+		} else if ((params.size() == 1 || params.size() == 2) && options.getAffected() != null) {
+			writeAffected(params.get(0), options.getAffected(), (params.size() == 2 ? params.get(1) : null));
+		} else if (params.size() == 1 && !options.getMergeReports().isEmpty()) {
+			new CoverageReportMerger().merge(options.getMergeReports(), params.get(0), options.isCompressed() || params.get(0).endsWith(".gz"));
+		} else if (params.size() < 3) {
+			System.out.println("Usage: SonarCoverage [options] <profilers> <listing path> <sonar data file> [sonar source path]");
+			System.out.println("       SonarCoverage -merge=<sonar data files> [options] <sonar data file>");
+			System.out.println("       SonarCoverage -snapshot=<snapshot file> [options] <profilers>");
+			System.out.println("       SonarCoverage -affected=<changes file> <attribution index> [tests file]");
+			System.out.println("Options:");
+			System.out.println("  -workers[=n]     Number of profiler files parsed concurrently (default 1)");
+			System.out.println("  -mmap            Reads the profiler files memory mapped");
+			System.out.println("  -recursive[=parallel]    Also reads the profiler files in the subdirectories");
+			System.out.println("  -profiler-include=globs  Patterns of the profiler files read (default names with \".out\")");
+			System.out.println("  -profiler-exclude=globs  Patterns of the profiler files ignored");
+			System.out.println("  -source-include=globs    Patterns of the sources kept from the profiler files");
+			System.out.println("  -source-exclude=globs    Patterns of the sources dropped from the profiler files");
+			System.out.println("  -changed-files=file      Keeps only the sources of the changed paths listed in the file");
+			System.out.println("  -pipeline[=n|virtual]    Maps the sources in n workers while the XML is written (default processors)");
+			System.out.println("  -pipeline-queue=n        Number of sources mapped ahead of the XML writer (default 4 per worker)");
+			System.out.println("  -listing-index[=parallel] Walks the listing path once instead of probing each listing");
+			System.out.println("  -incremental=dir Keeps the merged coverage and reads only new profiler files");
+			System.out.println("  -spill=dir       Moves the coverage to run files in the directory when it goes over the budget");
+			System.out.println("  -spill-budget=mb Memory used by the coverage before it is spilled (default 256)");
+			System.out.println("  -callgraph=file  Writes the calls between the sources and the heaviest call paths (CSV or DOT)");
+			System.out.println("  -callgraph-top=n Number of heaviest call paths written (default 10)");
+			System.out.println("  -attribution=file Writes the index of the test sessions that covered each source line");
+			System.out.println("  -snapshot=file   Writes the merged profiler coverage to a binary snapshot, read back as a profiler");
+			System.out.println("  -merge=files     Merges the informed sonar data files into the generated one");
+			System.out.println("  -report=file     Writes the timing and counters of each phase to the JSON file");
+			System.out.println("  -hotspots=file   Writes the lines with the highest time and execution count (CSV or JSON)");
+			System.out.println("  -hotspots-top=n  Number of lines in each order of the hotspot report (default 100)");
+			System.out.println("  -watch[=ms]      Keeps running, updating the sonar data file as new profiler files arrive");
+			System.out.println("  -watch-port=n    Serves the sonar data file on the local port in watch mode");
+			System.out.println("  -gzip            Writes the sonar data file gzip compressed (default for \".gz\" files)");
+			System.out.println("  -listing-cache=dir       Keeps the resolved listings in the informed directory");
+			System.out.println("  -listing-cache-size=mb   Maximum size of the listing cache (default 512)");
+			System.out.println("  -listing-cache-hash      Validates the cached listings by their content hash");
 		} else {
 			
 			SonarCoverage sonar;
 			
-			if (args.length < 4) {
-				sonar = new SonarCoverage(args[0], args[1]);
+			if (params.size() < 4) {
+				sonar = new SonarCoverage(params.get(0), params.get(1), "", options);
 			} else {
-				sonar = new SonarCoverage(args[0], args[1], args[3]);
+				sonar = new SonarCoverage(params.get(0), params.get(1), params.get(3), options);
 			}
 			
-			sonar.createDataTest(args[2]);
+			sonar.createDataTest(params.get(2));
+			
+			if (options.isWatch()) {
+				new CoverageDaemon(sonar, params.get(2), options.getWatchDebounce(), options.getWatchPort()).run();
+			}
 		}
 	}
 
@@ -61,123 +150,963 @@ public class SonarCoverage {
 	 * @throws IOException
 	 */
 	public SonarCoverage(String profSource, String listingPath, String sourcePath) throws IOException {
-		File file = new File(profSource);
-		List<File> files = new ArrayList<File>();
+		this(profSource, listingPath, sourcePath, new CoverageOptions());
+	}
+
+	/**
+	 * Generate a SONARQube Coverage XML from the provided information.
+	 * 
+	 * @param profSource Files or paths that contain the Progress Coverage Profiler (.out files), separated by the path separator.
+	 * @param listingPath Path that contains the Source Listings files (Preprocessed source code files).
+	 * @param sourcePath SONAR source path that will be used in the coverage XML file.
+	 * @param options Options used to read the profilers and generate the XML file.
+	 * 
+	 * @throws IOException
+	 */
+	public SonarCoverage(String profSource, String listingPath, String sourcePath, CoverageOptions options) throws IOException {
+		this(profSource, listingPath, sourcePath, options, null);
+	}
+
+	/**
+	 * Generate a SONARQube Coverage XML from the provided information, sharing
+	 * the parsed profiler files and listings with the other runs of the engine.
+	 * 
+	 * @param profSource Files or paths that contain the Progress Coverage Profiler (.out files), separated by the path separator, or null for none.
+	 * @param listingPath Path that contains the Source Listings files (Preprocessed source code files).
+	 * @param sourcePath SONAR source path that will be used in the coverage XML file.
+	 * @param options Options used to read the profilers and generate the XML file.
+	 * @param engine Engine whose caches are shared, or null for none.
+	 * 
+	 * @throws IOException
+	 */
+	public SonarCoverage(String profSource, String listingPath, String sourcePath, CoverageOptions options, CoverageEngine engine) throws IOException {
+		List<String> roots = (profSource == null || profSource.isEmpty() ? Collections.<String>emptyList() : Arrays.asList(profSource.split(File.pathSeparator)));
+		this.discovery = new ProfilerDiscovery(roots, options.isRecursive(), options.isRecursiveParallel(), options.getProfilerFilter());
+		this.engine = engine;
+		BlockingQueue<ProfilerInput> files;
 		
-		if (!file.exists()) {
-			throw new RuntimeException("Informed file or path \"" + file + "\" does not exists");
-		} else if (file.isDirectory()) {
-			files = Arrays.asList(file.listFiles());
-		} else {
-			files.add(file);
+		this.options = options;
+		this.sourceFilter = (options.getChangedFiles() != null ? options.getSourceFilter().withChangedFiles(options.getChangedFiles()) : options.getSourceFilter());
+		this.profiler = this.createProfiler();
+		
+		// In watch mode the listings are kept in memory while they do not change.
+		if (options.isWatch() && engine == null) {
+			this.engine = new CoverageEngine();
+			this.engine.setProfilerCacheSize(0);
 		}
 		
-		// Read all profilers files found in the provided path.
-		for (int i = 0; i < files.size(); i++) {
-			if (files.get(i).getName().indexOf(".out") > 0) {
-				try {
-					this.profiler.readProfiler(files.get(i).getAbsolutePath());	
-				} catch (Exception e)  {
-					e.printStackTrace();
+		if (options.getIncremental() != null) {
+			List<File> found = discovery.find();
+			List<File> changed = null;
+			
+			this.state = new IncrementalState(options.getIncremental());
+			this.profilerFiles = found;
+			
+			// The saved coverage does not know the sessions of each line, so all the files are read.
+			if (options.getAttribution() != null) {
+				System.out.println("** Test attribution requested, reading all the profiler files **");
+			} else if (state.load(sourceFilter.getScope(), options.getHotspots() != null, options.getCallGraph() != null)) {
+				changed = state.getChangedFiles(found);
+			}
+			
+			// Only the new files are merged into the saved coverage.
+			if (changed != null) {
+				System.out.println("** Incremental run, reading " + changed.size() + " of " + found.size() + " profiler files **");
+				this.profiler = state.getCoverage();
+				this.profiler.setSourceFilter(sourceFilter);
+				this.profiler.setTimed(options.getHotspots() != null);
+				this.profiler.setCallGraph(options.getCallGraph() != null);
+				
+				// The files in the saved coverage are known as read, so the watch mode does not read them again.
+				for (File file : found) {
+					if (!changed.contains(file)) {
+						readFiles.put(file.getAbsoluteFile(), file.lastModified());
+					}
 				}
 			}
+			
+			files = new LinkedBlockingQueue<ProfilerInput>();
+			
+			for (File file : (changed != null ? changed : found)) {
+				files.addAll(discovery.expand(file));
+			}
+			
+			files.add(ProfilerInput.END);
+		} else {
+			// The files are read while the directories are still being walked.
+			files = discovery.start();
+		}
+		
+		if (options.getSpill() != null) {
+			this.spill = new CoverageSpill(options.getSpill(), options.getSpillBudget());
+			this.profiler.setSpill(spill, spill.getBudget());
+		}
+		
+		FutureTask<ListingIndex> index = null;
+		
+		// In the pipeline the listing path is walked while the profilers are read.
+		if (options.isListingIndex() && options.getPipeline() > 0 && listingPath != null) {
+			index = this.startListingIndex(listingPath);
+		}
+		
+		CoverageMetrics.Timer phase = metrics.startPhase(CoverageMetrics.PROFILER);
+		
+		// Read all profilers files found in the provided path.
+		this.readProfilers(files);
+		
+		phase.stop();
+		
+		if (options.getListingCache() != null) {
+			this.listingCache = new ListingCache(options.getListingCache(), options.getListingCacheSize(), options.isListingCacheHash());
+		}
+		
+		if (index != null) {
+			this.listingIndex = this.getListingIndex(index);
+		} else if (options.isListingIndex() && listingPath != null) {
+			this.listingIndex = this.createListingIndex(listingPath);
 		}
 		
 		this.listingPath = listingPath;
 		this.sourcePath = sourcePath;
 	}
 
+	/**
+	 * Creates an empty profiler coverage, keeping what the options request.
+	 */
+	private ProfilerCoverage createProfiler() {
+		ProfilerCoverage created = new ProfilerCoverage();
+		created.setSourceFilter(sourceFilter);
+		created.setTimed(options.getHotspots() != null);
+		created.setCallGraph(options.getCallGraph() != null);
+		
+		if (options.getAttribution() != null) {
+			created.setAttribution(new TestAttribution());
+		}
+		
+		return created;
+	}
+
+	/**
+	 * Reads the profiler inputs into the coverage, concurrently when more than one worker was requested.
+	 * 
+	 * @param files Profiler inputs to be read, ended by {@link ProfilerInput#END}.
+	 * @throws IOException
+	 */
+	private void readProfilers(BlockingQueue<ProfilerInput> files) throws IOException {
+		if (options.getWorkers() > 1) {
+			this.readProfilers(files, options.getWorkers());
+			return;
+		}
+		
+		for (ProfilerInput input = nextInput(files); input != ProfilerInput.END; input = nextInput(files)) {
+			try {
+				this.readProfiler(this.profiler, input);
+			} catch (Exception e)  {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Walks the listing path into the listing index.
+	 */
+	private ListingIndex createListingIndex(String listingPath) throws IOException {
+		CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.LISTING_INDEX);
+		ListingIndex index = new ListingIndex(listingPath, options.isListingIndexParallel());
+		timer.stop(listingPath, 0, index.size());
+		
+		return index;
+	}
+
+	/**
+	 * Starts walking the listing path into the listing index in a background thread.
+	 * 
+	 * @param listingPath Path that contains the listing files.
+	 * @return Task that builds the index.
+	 */
+	private FutureTask<ListingIndex> startListingIndex(final String listingPath) {
+		FutureTask<ListingIndex> task = new FutureTask<ListingIndex>(new Callable<ListingIndex>() {
+			@Override
+			public ListingIndex call() throws IOException {
+				return createListingIndex(listingPath);
+			}
+		});
+		
+		Thread thread = new Thread(task, "listing-index");
+		thread.setDaemon(true);
+		thread.start();
+		
+		return task;
+	}
+
+	/**
+	 * Waits for the listing index started by {@link #startListingIndex(String)}.
+	 */
+	private ListingIndex getListingIndex(FutureTask<ListingIndex> index) throws IOException {
+		try {
+			return index.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while walking the listing path");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the profiler files concurrently, each worker into its own partial
+	 * coverage, merging the partials when all files were read.
+	 * 
+	 * @param files Profiler inputs to be read, ended by {@link ProfilerInput#END}.
+	 * @param workers Number of inputs read at the same time.
+	 * @throws IOException
+	 */
+	private void readProfilers(final BlockingQueue<ProfilerInput> files, int workers) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<ProfilerCoverage>> partials = new ArrayList<Future<ProfilerCoverage>>();
+		
+		for (int i = 0; i < workers; i++) {
+			partials.add(executor.submit(new Callable<ProfilerCoverage>() {
+				@Override
+				public ProfilerCoverage call() throws IOException {
+					ProfilerCoverage partial = new ProfilerCoverage();
+					partial.setSourceFilter(profiler.getSourceFilter());
+					partial.setTimed(profiler.isTimed());
+					partial.setCallGraph(profiler.isCallGraph());
+					partial.setAttribution(profiler.getAttribution() != null ? new TestAttribution(profiler.getAttribution()) : null);
+					
+					if (spill != null) {
+						partial.setSpill(spill, spill.getBudget() / workers);
+					}
+					
+					for (ProfilerInput input = nextInput(files); input != ProfilerInput.END; input = nextInput(files)) {
+						// Keeps what was read until the failure, as the sequential reading does.
+						try {
+							readProfiler(partial, input);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+					
+					// The other workers also have to find the end.
+					files.add(ProfilerInput.END);
+					
+					// The partial is spilled as a whole, so the merge does not go over the budget.
+					partial.spill();
+					
+					return partial;
+				}
+			}));
+		}
+		
+		try {
+			for (Future<ProfilerCoverage> partial : partials) {
+				this.profiler.merge(partial.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading the profiler files");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Waits for the next profiler input.
+	 */
+	private static ProfilerInput nextInput(BlockingQueue<ProfilerInput> files) throws InterruptedIOException {
+		try {
+			return files.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the profiler files");
+		}
+	}
+
+	/**
+	 * Reads the profiler input into the informed coverage. Plain files are read
+	 * through the input path selected in the options, compressed inputs are
+	 * decompressed while read.
+	 * 
+	 * @param target Coverage where the profiler is read into.
+	 * @param input Profiler file or archive entry.
+	 * @throws IOException
+	 */
+	private void readProfiler(ProfilerCoverage target, ProfilerInput input) throws IOException {
+		CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.PROFILER);
+		long modified = input.getFile().lastModified();
+		long records;
+		
+		// The test sessions of a file and the spilled coverage are never shared.
+		if (engine != null && engine.getProfilerCacheSize() > 0 && target.getAttribution() == null && spill == null) {
+			records = engine.readProfiler(target, input, options.isMemoryMapped());
+		} else {
+			records = target.readProfiler(input, options.isMemoryMapped());
+		}
+		
+		timer.stop(input.getName(), input.getSize(), records);
+		readFiles.put(input.getFile().getAbsoluteFile(), modified);
+	}
+
+	/**
+	 * Reads a profiler file found after the coverage was read, as in the watch
+	 * mode, unless it was already read and did not change since. When a file
+	 * already read changed, the coverage is read again from all the files, as
+	 * its counts, times and test session would otherwise be added twice and the
+	 * lines it no longer covers would still be covered.
+	 * 
+	 * @param file Profiler file or zip archive.
+	 * @return If the file was read.
+	 * @throws IOException
+	 */
+	public boolean addProfiler(File file) throws IOException {
+		Long modified = readFiles.get(file.getAbsoluteFile());
+		
+		if (modified != null && modified == file.lastModified()) {
+			return false;
+		}
+		
+		if (modified != null) {
+			this.rebuild(file);
+			return true;
+		}
+		
+		for (ProfilerInput input : discovery.expand(file)) {
+			this.readProfiler(this.profiler, input);
+		}
+		
+		// The incremental state also keeps the files read by the daemon.
+		if (profilerFiles != null && !profilerFiles.contains(file)) {
+			profilerFiles.add(file);
+			Collections.sort(profilerFiles);
+		}
+		
+		return true;
+	}
+
+	/**
+	 * Reads the coverage again from all the profiler files read until now,
+	 * leaving out the ones removed since.
+	 * 
+	 * @param changed Profiler file that changed.
+	 * @throws IOException
+	 */
+	private void rebuild(File changed) throws IOException {
+		List<File> files = new ArrayList<File>();
+		
+		// The files found but not read yet are still pending in the daemon.
+		for (File file : discovery.find()) {
+			if (readFiles.containsKey(file.getAbsoluteFile())) {
+				files.add(file);
+			}
+		}
+		
+		System.out.println("** Profiler file \"" + changed + "\" was modified, reading again " + files.size() + " profiler files **");
+		
+		readFiles.clear();
+		this.profiler = this.createProfiler();
+		
+		if (spill != null) {
+			spill.close();
+			this.spill = new CoverageSpill(options.getSpill(), options.getSpillBudget());
+			this.profiler.setSpill(spill, spill.getBudget());
+		}
+		
+		BlockingQueue<ProfilerInput> inputs = new LinkedBlockingQueue<ProfilerInput>();
+		
+		for (File file : files) {
+			inputs.addAll(discovery.expand(file));
+		}
+		
+		inputs.add(ProfilerInput.END);
+		
+		this.readProfilers(inputs);
+	}
+
+	/**
+	 * Reads a profiler output from a stream, as a profiler file.
+	 * 
+	 * @param name Name of the profiler output, used in the messages.
+	 * @param input Profiler output, gzip compressed or not. It is closed after read.
+	 * @throws IOException
+	 */
+	public void addProfiler(String name, InputStream input) throws IOException {
+		CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.PROFILER);
+		long records = profiler.readProfiler(name, ProfilerInput.decompress(input));
+		timer.stop(name, 0, records);
+	}
+
+	/**
+	 * Finds the profiler files of this coverage.
+	 */
+	ProfilerDiscovery getDiscovery() {
+		return discovery;
+	}
+
 	/**
 	 * Creates the SONARQube Coverage XML file based on the provided profilers and
-	 * listings files.
+	 * listings files, merged with the coverage XML files informed in the options.
 	 *  
 	 * @param output Absolute file name where the XML will be created.
 	 * @throws IOException 
 	 */
 	public void createDataTest(String output) throws IOException {
-		Map<String, Map<Integer, Boolean>> data = new HashMap<String, Map<Integer, Boolean>>();
-		String file;
-		String extSource;
-		int pivorSource;
-		
-		for (String source : profiler.getSources()) {
-						
-			file = checkAbsolutePath(source, listingPath);
+		try {
+			boolean compressed = options.isCompressed() || output.endsWith(".gz");
+			File target = new File(output).getAbsoluteFile();
 			
-			if (file != null){ //can't accept extensions like ".i, .i1, .i2, ...") {			
+			this.writeProfilerReports();
+			
+			// Written to a temporary file in the same directory, moved over the output only when the XML is whole.
+			File written = File.createTempFile("coverage", ".tmp", target.getParentFile());
+			
+			try {
+				if (options.getMergeReports().isEmpty()) {
+					this.writeDataTest(new CoverageXmlWriter(written.getPath(), compressed));
+				} else {
+					File temp = File.createTempFile("coverage", ".xml");
+					
+					try {
+						this.writeDataTest(new CoverageXmlWriter(temp.getPath(), false));
+						
+						List<String> reports = new ArrayList<String>(options.getMergeReports());
+						reports.add(temp.getPath());
+						
+						CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.MERGE);
+						new CoverageReportMerger().merge(reports, written.getPath(), compressed);
+						timer.stop(output, 0, reports.size());
+					} finally {
+						temp.delete();
+					}
+				}
 				
-				ListingFile list = new ListingFile(source, file);
-				Map<Integer, Boolean> coverage = profiler.getCoverageInfo(source);
-
-				for (Integer line : coverage.keySet()) {
-					if (list.isLineValid(line)) {
-						boolean covered = coverage.get(line);
-						String sourceR = list.getOriginalSource(line);
-						int lineR = list.getOriginalLine(line);
+				try {
+					Files.move(written.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(written.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				written.delete();
+			}
+			
+			if (options.getReport() != null) {
+				metrics.writeReport(options.getReport());
+			}
+		} finally {
+			this.release();
+		}
+	}
 
-						if(lineR != 0) {
-						
-							Map<Integer, Boolean> lines = data.get(sourceR);
-	
-							if (lines == null) {
-								lines = new TreeMap<Integer, Boolean>();
-								data.put(sourceR, lines);
-							}
-	
-							lines.put(lineR, covered);
-						}
+	/**
+	 * Creates the SONARQube Coverage XML into a stream, as {@link #createDataTest(String)}
+	 * does, gzip compressed when the options say so.
+	 *  
+	 * @param output Stream where the XML is written. It is not closed.
+	 * @throws IOException 
+	 */
+	public void createDataTest(OutputStream output) throws IOException {
+		try {
+			this.writeProfilerReports();
+			
+			if (options.getMergeReports().isEmpty()) {
+				// The writer closes its stream, the caller's one is only flushed.
+				OutputStream kept = new FilterOutputStream(output) {
+					@Override
+					public void write(byte[] b, int off, int len) throws IOException {
+						out.write(b, off, len);
 					}
+					
+					@Override
+					public void close() throws IOException {
+						this.flush();
+					}
+				};
+				
+				this.writeDataTest(new CoverageXmlWriter(options.isCompressed() ? new GZIPOutputStream(kept, 64 * 1024) : kept));
+			} else {
+				File temp = File.createTempFile("coverage", ".xml");
+				File merged = File.createTempFile("merged", ".xml");
+				
+				try {
+					this.writeDataTest(new CoverageXmlWriter(temp.getPath(), false));
+					
+					List<String> reports = new ArrayList<String>(options.getMergeReports());
+					reports.add(temp.getPath());
+					
+					CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.MERGE);
+					new CoverageReportMerger().merge(reports, merged.getPath(), options.isCompressed());
+					timer.stop(null, 0, reports.size());
+					
+					Files.copy(merged.toPath(), output);
+				} finally {
+					temp.delete();
+					merged.delete();
 				}
 			}
 			
+			if (options.getReport() != null) {
+				metrics.writeReport(options.getReport());
+			}
+		} finally {
+			this.release();
+		}
+	}
+
+	/**
+	 * Removes the spilled run files once the XML was written, except in watch
+	 * mode, where the XML is written again as new profiler files arrive.
+	 */
+	private void release() throws IOException {
+		if (!options.isWatch()) {
+			this.close();
+		}
+	}
+
+	/**
+	 * Removes the temporary files of the coverage, the run files of the spilled
+	 * coverage, that can not be written after. Called when the XML is created,
+	 * other than in watch mode.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (spill != null) {
+			spill.close();
+		}
+	}
+
+	/**
+	 * Writes the snapshot and the call graph of the profilers, when requested.
+	 */
+	private void writeProfilerReports() throws IOException {
+		if (options.getSnapshot() != null) {
+			this.writeSnapshot(options.getSnapshot());
 		}
 		
-		BufferedWriter writer = new BufferedWriter(new FileWriter(new File(output)));
-		writer.write("<coverage version=\"1\">\n");
+		if (options.getCallGraph() != null) {
+			profiler.getCallGraph().write(options.getCallGraph(), options.getCallGraphTop());
+		}
+	}
+
+	/**
+	 * Writes the merged profiler coverage to a binary snapshot, that can be read
+	 * back as a profiler input, alone or together with other profilers.
+	 * 
+	 * @param file Snapshot file, gzip compressed when it ends with ".gz".
+	 * @throws IOException
+	 */
+	public void writeSnapshot(String file) throws IOException {
+		CoverageSnapshot.save(profiler, file);
+	}
+
+	/**
+	 * Timing and counters of the phases run until now.
+	 */
+	public CoverageMetrics getMetrics() {
+		return metrics;
+	}
 
-		for (String source : data.keySet()) {			
-			String sourceP = source;			
-			pivorSource = source.lastIndexOf(".");			
-			extSource = "";
+	/**
+	 * Writes the SONARQube Coverage XML file based on the provided profilers and
+	 * listings files. Each source is written as soon as its listing is resolved,
+	 * only the lines of include files, that may be shared by several sources, are
+	 * kept until the end.
+	 *  
+	 * @param writer Writer of the XML, closed at the end, without the end of the root element after a failure.
+	 * @throws IOException 
+	 */
+	private void writeDataTest(CoverageXmlWriter writer) throws IOException {
+		IncludeCoverage includes = new IncludeCoverage();
+		List<String> listingFiles = new ArrayList<String>();
+		Set<String> paths = new HashSet<String>();
+		
+		HotspotReport hotspots = (options.getHotspots() != null ? new HotspotReport(options.getHotspotsTop()) : null);
+		CoverageMetrics.Timer phase = metrics.startPhase(CoverageMetrics.REPORT);
+		CoverageMetrics.Timer timer;
+		
+		// The sessions are mapped to the original lines together with the coverage.
+		this.testIndex = (profiler.getAttribution() != null ? new TestIndex() : null);
+		
+		boolean whole = false;
+		
+		try {
+			if (options.getPipeline() > 0) {
+				this.writeSources(writer, includes, hotspots, listingFiles, paths, options.getPipelineQueue());
+			} else {
+				LineCoverage lines = new LineCoverage();
+				
+				for (String source : profiler.getSources()) {
+					lines.clear();
+					this.writeSource(writer, this.mapSource(source, lines, includes), hotspots, listingFiles, paths);
+				}
+			}
 			
+			int written = 0;
 			
-			if(pivorSource != -1)					
-				extSource = source.substring(pivorSource);
-						
-			if(!extSource.replaceAll("[0-9]", "").equals(".i")){ //can't accept extensions like ".i, .i1, .i2, ..."				
-				file = checkAbsolutePath(source, listingPath); 
+			for (Map.Entry<String, LineCoverage> include : includes.getSorted().entrySet()) {
+				// The include files are only known from the listings, so they are filtered here.
+				if (!sourceFilter.accept(include.getKey())) {
+					continue;
+				}
 				
-				if (file != null) {					
-					String ext = "";					
-					ext = file.toString().substring(file.lastIndexOf("."));					
-					int pivor = source.lastIndexOf(".");
-						
-					if(ext.equalsIgnoreCase(".cls"))
-						sourceP = source.replace(".", "/") + ext;
-					else {
-						if(pivor != -1)
-							sourceP = source.substring(0, pivor) + ext;
-						else
-							sourceP = source + ext;
-					}
+				String path = this.getOutputPath(include.getKey(), null);
+				
+				// A profiled source was already written with the lines of its own listing, the lines other listings attribute to it are left out.
+				if (paths.contains(path)) {
+					System.out.println("** Lines of \"" + include.getKey() + "\" from other listings ignored, it is written as a source **");
+					continue;
 				}
-			}			
-			writer.write("\t<file path=\"" + this.sourcePath + sourceP.replaceAll("\\\\", "/") + "\">\n");
+				
+				timer = metrics.start(CoverageMetrics.XML);
+				writer.writeFile(path, include.getValue());
+				timer.stop(null, 0, include.getValue().size());
+				written++;
+			}
+			
+			metrics.add(CoverageMetrics.INCLUDE_FILES, written);
+			metrics.add(CoverageMetrics.FILTERED_SOURCES, sourceFilter.getRejectedCount());
+			whole = true;
+		} finally {
+			// After a failure the root element is left open, so the XML is not valid.
+			if (whole) {
+				writer.close();
+			} else {
+				writer.abort();
+			}
+			
+			phase.stop();
+		}
+		
+		if (hotspots != null) {
+			hotspots.write(options.getHotspots());
+		}
+		
+		if (testIndex != null) {
+			testIndex.write(options.getAttribution(), profiler.getAttribution().getSessions());
+			this.testIndex = null;
+		}
+		
+		if (listingCache != null) {
+			listingCache.evict();
+		}
+		
+		if (state != null) {
+			state.save(profiler, sourceFilter.getScope(), profilerFiles, listingFiles);
+		}
+	}
 
-			Map<Integer, Boolean> coverage = data.get(source);
-			Set<Integer> lines = coverage.keySet();
+	/**
+	 * Maps and writes the sources as a pipeline: the listings are resolved, read
+	 * and mapped by the workers, while the mapped sources are written by the
+	 * calling thread in alphabetical order, as the sequential mapping does. The
+	 * workers merge the lines of the include files straight into the shared
+	 * include coverage. At most the informed number of sources is mapped ahead
+	 * of the writer, so the workers wait when the writer falls behind.
+	 * 
+	 * @param writer Writer of the XML file.
+	 * @param includes Lines of the include files, kept until the end.
+	 * @param hotspots Hotspot report, or null when it was not requested.
+	 * @param listingFiles Listing files read.
+	 * @param paths Output paths of the sources written.
+	 * @param capacity Number of sources mapped ahead of the writer.
+	 * @throws IOException
+	 */
+	private void writeSources(CoverageXmlWriter writer, final IncludeCoverage includes, HotspotReport hotspots, List<String> listingFiles, Set<String> paths, int capacity) throws IOException {
+		ExecutorService executor = (this.executor != null ? this.executor : this.createExecutor());
+		Deque<Future<MappedSource>> mapped = new ArrayDeque<Future<MappedSource>>();
+		Iterator<String> sources = profiler.getSources().iterator();
+		
+		try {
+			while (sources.hasNext() || !mapped.isEmpty()) {
+				while (sources.hasNext() && mapped.size() < capacity) {
+					final String source = sources.next();
+					
+					mapped.add(executor.submit(new Callable<MappedSource>() {
+						@Override
+						public MappedSource call() throws IOException {
+							return mapSource(source, new LineCoverage(), includes);
+						}
+					}));
+				}
+				
+				this.writeSource(writer, mapped.poll().get(), hotspots, listingFiles, paths);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while mapping the sources");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			// An executor informed by the caller is kept, the sources still mapped are cancelled.
+			if (executor != this.executor) {
+				executor.shutdownNow();
+			} else {
+				for (Future<MappedSource> source : mapped) {
+					source.cancel(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Creates the executor of the pipeline workers, with virtual threads when
+	 * they were requested and the Java runtime supports them.
+	 */
+	private ExecutorService createExecutor() {
+		if (options.isPipelineVirtual()) {
+			try {
+				// Virtual threads are only available from Java 21, so they are looked up by reflection.
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("** Virtual threads are not available, mapping the sources in " + options.getPipeline() + " threads **");
+			}
+		}
+		
+		return Executors.newFixedThreadPool(options.getPipeline());
+	}
+
+	/**
+	 * Sets the executor where the sources are mapped when the pipeline is
+	 * enabled, instead of creating one for each XML written. The executor is
+	 * not shut down.
+	 * 
+	 * @param executor Executor of the pipeline workers, or null to create one.
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
 
-			for (Integer lineno : lines) {
-				Boolean covered = coverage.get(lineno);
+	/**
+	 * Resolves and reads the listing of the source, mapping its lines to the
+	 * original source lines.
+	 * 
+	 * @param source Source name, as found in the profiler.
+	 * @param lines Coverage where the lines of the source itself are added.
+	 * @param includes Coverage of the include files, where their lines are merged.
+	 * @return Mapped source, without listing when it was not found.
+	 * @throws IOException
+	 */
+	private MappedSource mapSource(String source, LineCoverage lines, IncludeCoverage includes) throws IOException {
+		MappedSource mapped = new MappedSource();
+		mapped.source = source;
+		
+		CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.LISTING_RESOLUTION);
+		mapped.file = checkAbsolutePath(source, listingPath);
+		timer.stop();
+		
+		if (mapped.file == null) {
+			return mapped;
+		}
+		
+		timer = metrics.start(CoverageMetrics.LISTING);
+		ListingFile list = this.readListing(source, mapped.file);
+		timer.stop(mapped.file, new File(mapped.file).length(), list.getLineCount());
+		
+		LineCoverage coverage = profiler.getCoverage(source);
+		mapped.listing = list;
+		mapped.lines = lines;
+		
+		// The include lines of the unit are merged at once, so the shared coverage is locked less often.
+		Map<String, LineCoverage> unit = new HashMap<String, LineCoverage>();
+		Map<String, String> paths = (testIndex != null ? new HashMap<String, String>() : null);
+		
+		for (int line = coverage.nextLine(0); line >= 0; line = coverage.nextLine(line + 1)) {
+			if (!list.isLineValid(line)) {
+				mapped.invalid++;
+			} else {
+				boolean covered = coverage.isCovered(line);
+				String sourceR = list.getOriginalSource(line);
+				int lineR = list.getOriginalLine(line);
 				
-				writer.write("\t\t<lineToCover lineNumber=\"" + lineno + "\" covered=\"" + covered + "\"/>\n");
+				if (lineR == 0) {
+					mapped.unmapped++;
+					continue;
+				}
+				
+				if (paths != null && covered) {
+					this.addSessions(source, line, sourceR, lineR, mapped.file, paths);
+				}
+				
+				if (sourceR.equals(source)) {
+					lines.add(lineR, covered);
+				} else {
+					LineCoverage include = unit.get(sourceR);
+					
+					if (include == null) {
+						include = new LineCoverage();
+						unit.put(sourceR, include);
+					}
+					
+					include.add(lineR, covered);
+				}
 			}
+		}
+		
+		includes.merge(unit);
+		
+		return mapped;
+	}
 
-			writer.write("\t</file>\n");
+	/**
+	 * Adds the sessions that covered a line to the test index.
+	 * 
+	 * @param source Source name, as found in the profiler.
+	 * @param line Line number in the listing.
+	 * @param sourceR Original source of the line, the source itself or an include file.
+	 * @param lineR Original line number.
+	 * @param file Listing file of the source.
+	 * @param paths Paths in the XML of the original sources found until now.
+	 * @throws IOException
+	 */
+	private void addSessions(String source, int line, String sourceR, int lineR, String file, Map<String, String> paths) throws IOException {
+		BitSet sessions = profiler.getAttribution().getSessions(source, line);
+		
+		if (sessions == null) {
+			return;
+		}
+		
+		String path = paths.get(sourceR);
+		
+		if (path == null) {
+			path = this.getOutputPath(sourceR, (sourceR.equals(source) ? file : null));
+			paths.put(sourceR, path);
 		}
+		
+		testIndex.add(path, lineR, sessions);
+	}
 
-		writer.write("</coverage>\n");
-		writer.close();
+	/**
+	 * Writes the test sessions affected by the changes, as found in the test
+	 * attribution index.
+	 * 
+	 * @param index Test attribution index.
+	 * @param changes File with the changed paths and lines.
+	 * @param output CSV file where the sessions are written, or null for the standard output.
+	 * @throws IOException
+	 */
+	private static void writeAffected(String index, String changes, String output) throws IOException {
+		TestIndex tests = TestIndex.read(index);
+		BitSet affected = tests.getAffected(changes);
+		
+		if (output == null) {
+			tests.writeSessions(System.out, affected);
+			return;
+		}
+		
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8))) {
+			tests.writeSessions(writer, affected);
+		}
+		
+		System.out.println("** " + affected.cardinality() + " of " + tests.getSessions().size() + " test sessions affected, written to \"" + output + "\" **");
+	}
+
+	/**
+	 * Writes a mapped source.
+	 * 
+	 * @param writer Writer of the XML file.
+	 * @param mapped Mapped source.
+	 * @param hotspots Hotspot report, or null when it was not requested.
+	 * @param listingFiles Listing files read.
+	 * @param paths Output paths of the sources written.
+	 * @throws IOException
+	 */
+	private void writeSource(CoverageXmlWriter writer, MappedSource mapped, HotspotReport hotspots, List<String> listingFiles, Set<String> paths) throws IOException {
+		if (mapped.file == null) {
+			metrics.add(CoverageMetrics.DROPPED_SOURCES, 1);
+			return;
+		}
+		
+		listingFiles.add(mapped.file);
+		
+		LineTimings timings = (hotspots != null ? profiler.getTimings(mapped.source) : null);
+		
+		if (timings != null) {
+			hotspots.add(mapped.source, timings, mapped.listing);
+		}
+		
+		// Counted by source, the metrics are updated once per source.
+		metrics.add(CoverageMetrics.INVALID_LINES, mapped.invalid);
+		metrics.add(CoverageMetrics.UNMAPPED_LINES, mapped.unmapped);
+		
+		if (!mapped.lines.isEmpty()) {
+			String path = this.getOutputPath(mapped.source, mapped.file);
+			paths.add(path);
+			
+			CoverageMetrics.Timer timer = metrics.start(CoverageMetrics.XML);
+			writer.writeFile(path, mapped.lines);
+			timer.stop(null, 0, mapped.lines.size());
+			
+			metrics.add(CoverageMetrics.SOURCES, 1);
+		}
+	}
+
+	/**
+	 * Reads the listing of the source, from the listing cache when it is enabled.
+	 * 
+	 * @param source Source name, as found in the profiler.
+	 * @param file Listing file of the source.
+	 * @return Resolved listing.
+	 * @throws IOException
+	 */
+	private ListingFile readListing(String source, String file) throws IOException {
+		if (engine == null) {
+			return this.loadListing(source, file);
+		}
+		
+		// The listings of the engine are kept in memory while they do not change.
+		ListingFile listing = engine.getListing(source, file);
+		
+		if (listing == null) {
+			listing = this.loadListing(source, file);
+			engine.putListing(source, file, listing);
+		}
+		
+		return listing;
+	}
+
+	private ListingFile loadListing(String source, String file) throws IOException {
+		return (listingCache != null ? listingCache.get(source, file) : new ListingFile(source, file));
+	}
+
+	/**
+	 * Returns the path of the source as it must be written in the XML file.
+	 * 
+	 * @param source Source name, as found in the profiler or listing.
+	 * @param file Listing file of the source, or null if it was not resolved yet.
+	 * @return Path of the source in the SONAR project.
+	 * @throws IOException
+	 */
+	private String getOutputPath(String source, String file) throws IOException {
+		String sourceP = source;
+		int pivorSource = source.lastIndexOf(".");
+		String extSource = "";
+		
+		if(pivorSource != -1)
+			extSource = source.substring(pivorSource);
+		
+		if(!extSource.replaceAll("[0-9]", "").equals(".i")){ //can't accept extensions like ".i, .i1, .i2, ..."
+			if (file == null) {
+				file = checkAbsolutePath(source, listingPath);
+			}
+			
+			if (file != null) {
+				String ext = file.substring(file.lastIndexOf("."));
+				int pivor = source.lastIndexOf(".");
+				
+				if(ext.equalsIgnoreCase(".cls"))
+					sourceP = source.replace(".", "/") + ext;
+				else {
+					if(pivor != -1)
+						sourceP = source.substring(0, pivor) + ext;
+					else
+						sourceP = source + ext;
+				}
+			}
+		}
+		
+		return this.sourcePath + sourceP.replaceAll("\\\\", "/");
 	}
 	
 	/**
@@ -202,20 +1131,25 @@ public class SonarCoverage {
 			System.out.println("** Error reading source: '" + source + "' - Exception: " + e.getMessage());
 		}
 		
-		File file = new File(listingPath.replaceAll("\\\\", "/") + "/" + source.replaceAll("\\\\", "/"));
+		// The listing index answers the probes when it was built for this listing path.
+		ListingIndex index = (listingIndex != null && listingPath.equals(this.listingPath) ? listingIndex : null);
+		String root = listingPath.replace('\\', '/') + "/";
+		String candidate = source.replace('\\', '/');
+		File file = new File(root + candidate);
 		
-		if(!file.exists() || file.isDirectory()) {	
+		if(!this.exists(index, file, candidate) || this.isDirectory(index, file, candidate)) {	
 			if(source.lastIndexOf(".") > 0){
 				source = source.substring(0,source.lastIndexOf("."));
 			}
 			while (extension < EXTENSIONS.length) {			
 				if(EXTENSIONS[extension].equalsIgnoreCase(".cls")){
-					file = new File(listingPath.replaceAll("\\\\", "/") + "/" + source.replaceAll("\\\\", "/").replace(".", "/") + EXTENSIONS[extension]);
+					candidate = source.replace('\\', '/').replace(".", "/") + EXTENSIONS[extension];
 				}else{
-					file = new File(listingPath.replaceAll("\\\\", "/") + "/" + source.replaceAll("\\\\", "/") + EXTENSIONS[extension]);
+					candidate = source.replace('\\', '/') + EXTENSIONS[extension];
 				}
+				file = new File(root + candidate);
 
-				if (file.exists()){				
+				if (this.exists(index, file, candidate)){				
 					rFile = file.toString();
 					break;
 				}
@@ -226,4 +1160,24 @@ public class SonarCoverage {
 		}
 		return rFile;
 	}
+
+	private boolean exists(ListingIndex index, File file, String relative) {
+		return (index != null ? index.exists(relative) : file.exists());
+	}
+
+	private boolean isDirectory(ListingIndex index, File file, String relative) {
+		return (index != null ? index.isDirectory(relative) : file.isDirectory());
+	}
+
+	/**
+	 * A source mapped to the original source lines, waiting to be written.
+	 */
+	private static class MappedSource {
+		private String source;
+		private String file;
+		private ListingFile listing;
+		private LineCoverage lines;
+		private int invalid;
+		private int unmapped;
+	}
 }
@@ -0,0 +1,154 @@
+package com.oecoverage.coverage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sources kept from the profiler files, selected by include and exclude glob
+ * patterns and, optionally, by a list of changed files. The sources filtered
+ * out are dropped while the profiler is parsed, so their lines are never kept
+ * and their listings are never read.
+ *
+ * The profiler names the classes by package ("com.acme.Customer"), so they are
+ * matched as their file path ("com/acme/Customer.cls"). A changed file matches
+ * a source when its path ends with the source path, so the list may hold paths
+ * relative to any parent of the propath, as the ones of a version control diff.
+ */
+public class SourceFilter {
+	private GlobFilter patterns = new GlobFilter();
+	private List<String> changed;
+	private StringBuilder scope = new StringBuilder();
+	private Map<String, Boolean> accepted = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Adds patterns of the sources kept.
+	 *
+	 * @param globs Glob patterns separated by the path separator.
+	 */
+	public void include(String globs) {
+		patterns.include(globs);
+		scope.append("include=").append(globs).append('\n');
+		accepted.clear();
+	}
+
+	/**
+	 * Adds patterns of the sources dropped, they prevail over the included ones.
+	 *
+	 * @param globs Glob patterns separated by the path separator.
+	 */
+	public void exclude(String globs) {
+		patterns.exclude(globs);
+		scope.append("exclude=").append(globs).append('\n');
+		accepted.clear();
+	}
+
+	/**
+	 * Returns a filter with the same patterns that also keeps only the sources
+	 * of the files in the list.
+	 *
+	 * @param file File with one changed path per line.
+	 * @return Filter of the changed sources.
+	 * @throws IOException
+	 */
+	public SourceFilter withChangedFiles(String file) throws IOException {
+		TreeSet<String> paths = new TreeSet<String>();
+
+		for (String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+			String path = line.trim().replace('\\', '/');
+
+			if (!path.isEmpty()) {
+				paths.add(path.startsWith("./") ? path.substring(2) : path);
+			}
+		}
+
+		SourceFilter filter = new SourceFilter();
+		filter.patterns = patterns;
+		filter.changed = new ArrayList<String>(paths);
+		filter.scope.append(scope).append("changed=").append(paths).append('\n');
+
+		System.out.println("** " + paths.size() + " changed files read from \"" + file + "\" **");
+
+		return filter;
+	}
+
+	/**
+	 * Number of distinct sources dropped until now.
+	 */
+	public int getRejectedCount() {
+		int count = 0;
+
+		for (Boolean found : accepted.values()) {
+			if (!found) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * If no pattern or changed file list was informed, so all the sources are kept.
+	 */
+	public boolean isEmpty() {
+		return patterns.isEmpty() && changed == null;
+	}
+
+	/**
+	 * Description of the patterns and changed files, that changes whenever a
+	 * different set of sources may be kept.
+	 */
+	public String getScope() {
+		return scope.toString();
+	}
+
+	/**
+	 * If the source is kept.
+	 *
+	 * @param source Source name, as found in the profiler.
+	 */
+	public boolean accept(String source) {
+		if (this.isEmpty()) {
+			return true;
+		}
+
+		// Each source is checked once for every profiler file, so the answer is kept.
+		Boolean found = accepted.get(source);
+
+		if (found == null) {
+			String path = getPath(source);
+			found = patterns.accept(path) && (changed == null || this.isChanged(path));
+			accepted.put(source, found);
+		}
+
+		return found;
+	}
+
+	private boolean isChanged(String path) {
+		for (String file : changed) {
+			if (file.equals(path) || (file.endsWith(path) && file.charAt(file.length() - path.length() - 1) == '/')) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the file path of the source, the classes named by package as a ".cls" path.
+	 */
+	static String getPath(String source) {
+		String path = source.replace('\\', '/');
+
+		if (path.indexOf('/') == -1 && path.indexOf('.') != path.lastIndexOf('.')) {
+			path = path.replace('.', '/') + ".cls";
+		}
+
+		return path;
+	}
+}
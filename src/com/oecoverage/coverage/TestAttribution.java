@@ -0,0 +1,159 @@
+package com.oecoverage.coverage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test sessions that covered each line of the profiler sources. Each profiler
+ * file is a test session, identified by its name and the description of the
+ * session in its first block, and each covered line keeps the bitmap of the
+ * ids of the sessions that covered it.
+ *
+ * The attributions read by several workers share the same sessions, so their
+ * ids are the same and the bitmaps are merged as they are.
+ */
+public class TestAttribution {
+	private Sessions sessions;
+	private Map<String, Map<Integer, BitSet>> sources = new HashMap<String, Map<Integer, BitSet>>();
+	private int session = -1;
+	private Map<Integer, BitSet> lines;
+	private String source;
+
+	public TestAttribution() {
+		this.sessions = new Sessions();
+	}
+
+	/**
+	 * Attribution that shares the sessions of another one, as the ones read by the workers.
+	 *
+	 * @param shared Attribution whose sessions are shared.
+	 */
+	public TestAttribution(TestAttribution shared) {
+		this.sessions = shared.sessions;
+	}
+
+	/**
+	 * Starts a new test session, to which the covered lines are attributed.
+	 *
+	 * @param profiler Name of the profiler file.
+	 */
+	public void startSession(String profiler) {
+		this.session = sessions.add(profiler);
+	}
+
+	/**
+	 * Sets the description of the current session, read from the profiler.
+	 *
+	 * @param description Session description.
+	 */
+	public void setDescription(String description) {
+		sessions.setDescription(session, description);
+	}
+
+	/**
+	 * Attributes the line to the current session.
+	 *
+	 * @param source Source name, as found in the profiler.
+	 * @param line Line number in the debug listing.
+	 */
+	public void cover(String source, int line) {
+		if (session < 0) {
+			return;
+		}
+
+		// The covered lines of a session usually follow each other in the same source.
+		if (!source.equals(this.source)) {
+			this.source = source;
+			this.lines = sources.get(source);
+
+			if (lines == null) {
+				lines = new HashMap<Integer, BitSet>();
+				sources.put(source, lines);
+			}
+		}
+
+		BitSet tests = lines.get(line);
+
+		if (tests == null) {
+			tests = new BitSet();
+			lines.put(line, tests);
+		}
+
+		tests.set(session);
+	}
+
+	/**
+	 * Returns the sessions that covered the line, or null when none did.
+	 *
+	 * @param source Source name, as found in the profiler.
+	 * @param line Line number in the debug listing.
+	 */
+	public BitSet getSessions(String source, int line) {
+		Map<Integer, BitSet> found = sources.get(source);
+		return (found != null ? found.get(line) : null);
+	}
+
+	/**
+	 * Merges the sessions of each line of another attribution with the same sessions.
+	 *
+	 * @param other Attribution to be merged.
+	 */
+	public void merge(TestAttribution other) {
+		if (other.sessions != sessions) {
+			throw new IllegalArgumentException("Test attributions with different sessions");
+		}
+
+		for (Map.Entry<String, Map<Integer, BitSet>> source : other.sources.entrySet()) {
+			Map<Integer, BitSet> lines = sources.get(source.getKey());
+
+			if (lines == null) {
+				sources.put(source.getKey(), source.getValue());
+				continue;
+			}
+
+			for (Map.Entry<Integer, BitSet> line : source.getValue().entrySet()) {
+				BitSet tests = lines.get(line.getKey());
+
+				if (tests == null) {
+					lines.put(line.getKey(), line.getValue());
+				} else {
+					tests.or(line.getValue());
+				}
+			}
+		}
+
+		// The cached source may now be replaced.
+		this.source = null;
+	}
+
+	/**
+	 * Returns the profiler name and description of each session, by session id.
+	 */
+	public List<String[]> getSessions() {
+		return sessions.get();
+	}
+
+	/**
+	 * Sessions shared by the attributions, with the profiler name and description of each one.
+	 */
+	private static class Sessions {
+		private List<String[]> sessions = new ArrayList<String[]>();
+
+		synchronized int add(String profiler) {
+			sessions.add(new String[] { profiler, "" });
+			return sessions.size() - 1;
+		}
+
+		synchronized void setDescription(int session, String description) {
+			if (session >= 0) {
+				sessions.get(session)[1] = description;
+			}
+		}
+
+		synchronized List<String[]> get() {
+			return new ArrayList<String[]>(sessions);
+		}
+	}
+}
@@ -0,0 +1,364 @@
+package com.oecoverage.coverage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Inverted index from the original source lines to the test sessions that
+ * covered them, used to select the tests affected by a change. The lines are
+ * mapped by the listings, as the lines of the coverage XML, and the sources
+ * are kept by their path in the XML.
+ *
+ * In the index file, the sessions of each line are a bitmap of session ids,
+ * written as words or as runs of consecutive ids, whichever is smaller. Lines
+ * covered by the same sessions, usually most of them, share the same bitmap.
+ */
+public class TestIndex {
+	private static final int INDEX_MAGIC = 0x4F455449; // "OETI"
+	private static final int INDEX_VERSION = 1;
+
+	private List<String[]> sessions = new ArrayList<String[]>();
+	private ConcurrentMap<String, SortedMap<Integer, BitSet>> sources = new ConcurrentHashMap<String, SortedMap<Integer, BitSet>>();
+
+	/**
+	 * Adds the sessions that covered a line. Sources are added concurrently by
+	 * the pipeline workers, each source locked only while its lines are added.
+	 *
+	 * @param path Path of the source in the coverage XML.
+	 * @param line Original line number.
+	 * @param tests Ids of the sessions that covered the line.
+	 */
+	public void add(String path, int line, BitSet tests) {
+		SortedMap<Integer, BitSet> lines = sources.get(path);
+
+		if (lines == null) {
+			SortedMap<Integer, BitSet> created = new TreeMap<Integer, BitSet>();
+			lines = sources.putIfAbsent(path, created);
+
+			if (lines == null) {
+				lines = created;
+			}
+		}
+
+		synchronized (lines) {
+			BitSet found = lines.get(line);
+
+			if (found == null) {
+				lines.put(line, (BitSet) tests.clone());
+			} else {
+				found.or(tests);
+			}
+		}
+	}
+
+	/**
+	 * Writes the index. The sessions are renumbered in the order of their
+	 * profiler names, so the same profilers always give the same index.
+	 *
+	 * @param output Index file.
+	 * @param attribution Sessions read from the profilers, by session id.
+	 * @throws IOException
+	 */
+	public void write(String output, List<String[]> attribution) throws IOException {
+		final List<String[]> read = attribution;
+		List<Integer> order = new ArrayList<Integer>();
+
+		for (int i = 0; i < read.size(); i++) {
+			order.add(i);
+		}
+
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int compare = read.get(a)[0].compareTo(read.get(b)[0]);
+				return (compare != 0 ? compare : Integer.compare(a, b));
+			}
+		});
+
+		int[] ids = new int[read.size()];
+		this.sessions = new ArrayList<String[]>();
+
+		for (int i = 0; i < order.size(); i++) {
+			ids[order.get(i)] = i;
+			sessions.add(read.get(order.get(i)));
+		}
+
+		File target = new File(output).getAbsoluteFile();
+		File temp = File.createTempFile("tests", ".tmp", target.getParentFile());
+
+		try {
+			try (DataOutputStream data = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+				this.write(data, ids);
+			}
+
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+
+		System.out.println("** Test attribution of " + sessions.size() + " sessions and " + sources.size() + " sources written to \"" + output + "\" **");
+	}
+
+	private void write(DataOutput output, int[] ids) throws IOException {
+		SortedMap<String, SortedMap<Integer, BitSet>> sorted = new TreeMap<String, SortedMap<Integer, BitSet>>(sources);
+		Map<BitSet, Integer> bitmaps = new HashMap<BitSet, Integer>();
+		List<BitSet> unique = new ArrayList<BitSet>();
+		Map<BitSet, BitSet> renumbered = new HashMap<BitSet, BitSet>();
+
+		// The bitmaps are renumbered and deduplicated before the sources are written.
+		for (SortedMap<Integer, BitSet> lines : sorted.values()) {
+			for (Map.Entry<Integer, BitSet> line : lines.entrySet()) {
+				BitSet tests = renumbered.get(line.getValue());
+
+				if (tests == null) {
+					tests = new BitSet();
+
+					for (int id = line.getValue().nextSetBit(0); id >= 0; id = line.getValue().nextSetBit(id + 1)) {
+						tests.set(ids[id]);
+					}
+
+					renumbered.put(line.getValue(), tests);
+				}
+
+				if (!bitmaps.containsKey(tests)) {
+					bitmaps.put(tests, unique.size());
+					unique.add(tests);
+				}
+			}
+		}
+
+		output.writeInt(INDEX_MAGIC);
+		output.writeInt(INDEX_VERSION);
+
+		LineCoverage.writeVarInt(output, sessions.size());
+
+		for (String[] session : sessions) {
+			output.writeUTF(session[0]);
+			output.writeUTF(session[1]);
+		}
+
+		LineCoverage.writeVarInt(output, unique.size());
+
+		for (BitSet tests : unique) {
+			LineCoverage.writeBits(output, tests);
+		}
+
+		LineCoverage.writeVarInt(output, sorted.size());
+
+		for (Map.Entry<String, SortedMap<Integer, BitSet>> source : sorted.entrySet()) {
+			output.writeUTF(source.getKey());
+			LineCoverage.writeVarInt(output, source.getValue().size());
+
+			int previous = 0;
+
+			for (Map.Entry<Integer, BitSet> line : source.getValue().entrySet()) {
+				LineCoverage.writeVarInt(output, line.getKey() - previous);
+				LineCoverage.writeVarInt(output, bitmaps.get(renumbered.get(line.getValue())));
+				previous = line.getKey();
+			}
+		}
+	}
+
+	/**
+	 * Reads an index written by {@link #write(String, List)}.
+	 *
+	 * @param file Index file.
+	 * @return Index read.
+	 * @throws IOException
+	 */
+	public static TestIndex read(String file) throws IOException {
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+			return read(input);
+		}
+	}
+
+	private static TestIndex read(DataInput input) throws IOException {
+		if (input.readInt() != INDEX_MAGIC) {
+			throw new IOException("Not a test attribution index");
+		}
+
+		int version = input.readInt();
+
+		if (version != INDEX_VERSION) {
+			throw new IOException("Unsupported test attribution index version: " + version);
+		}
+
+		TestIndex index = new TestIndex();
+		int count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			index.sessions.add(new String[] { input.readUTF(), input.readUTF() });
+		}
+
+		List<BitSet> bitmaps = new ArrayList<BitSet>();
+		count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			bitmaps.add(LineCoverage.readBits(input));
+		}
+
+		count = LineCoverage.readVarInt(input);
+
+		for (int i = 0; i < count; i++) {
+			String path = input.readUTF();
+			SortedMap<Integer, BitSet> lines = new TreeMap<Integer, BitSet>();
+			int size = LineCoverage.readVarInt(input);
+
+			for (int j = 0, line = 0; j < size; j++) {
+				line += LineCoverage.readVarInt(input);
+				int id = LineCoverage.readVarInt(input);
+
+				if (id < 0 || id >= bitmaps.size()) {
+					throw new IOException("Invalid bitmap id in test attribution index: " + id);
+				}
+
+				lines.put(line, bitmaps.get(id));
+			}
+
+			index.sources.put(path, lines);
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the profiler name and description of each session, by session id.
+	 */
+	public List<String[]> getSessions() {
+		return Collections.unmodifiableList(sessions);
+	}
+
+	/**
+	 * Returns the sessions that covered any of the changed lines of a file.
+	 *
+	 * @param path Changed file, matched to the sources whose path ends with it,
+	 * or that end with its path, so it may be relative to another root.
+	 * @param lines Changed lines, or null for the whole file.
+	 * @return Ids of the affected sessions.
+	 */
+	public BitSet getAffected(String path, BitSet lines) {
+		BitSet affected = new BitSet();
+		path = path.replace('\\', '/');
+
+		for (Map.Entry<String, SortedMap<Integer, BitSet>> source : sources.entrySet()) {
+			if (!matches(source.getKey(), path)) {
+				continue;
+			}
+
+			for (Map.Entry<Integer, BitSet> line : source.getValue().entrySet()) {
+				if (lines == null || lines.get(line.getKey())) {
+					affected.or(line.getValue());
+				}
+			}
+		}
+
+		return affected;
+	}
+
+	/**
+	 * Returns the sessions affected by the changes listed in the file. Each line
+	 * has a changed path, optionally followed by ":" and the changed lines, as
+	 * numbers or ranges separated by ",": "src/app/customer.p:10,25-40".
+	 *
+	 * @param changes File with the changes.
+	 * @return Ids of the affected sessions.
+	 * @throws IOException
+	 */
+	public BitSet getAffected(String changes) throws IOException {
+		BitSet affected = new BitSet();
+
+		for (String change : Files.readAllLines(Paths.get(changes), StandardCharsets.UTF_8)) {
+			change = change.trim();
+
+			if (change.isEmpty()) {
+				continue;
+			}
+
+			int pivor = change.lastIndexOf(':');
+			BitSet lines = null;
+
+			// A ":" followed by a line list, not the one of a drive letter.
+			if (pivor > 1 && change.substring(pivor + 1).matches("[0-9,\\- ]+")) {
+				lines = parseLines(change.substring(pivor + 1));
+				change = change.substring(0, pivor);
+			}
+
+			affected.or(this.getAffected(change, lines));
+		}
+
+		return affected;
+	}
+
+	/**
+	 * Writes the affected sessions as CSV, with the profiler name and description of each one.
+	 *
+	 * @param writer Writer where the sessions are written.
+	 * @param affected Ids of the sessions.
+	 * @throws IOException
+	 */
+	public void writeSessions(Appendable writer, BitSet affected) throws IOException {
+		writer.append("profiler,description\n");
+
+		for (int id = affected.nextSetBit(0); id >= 0; id = affected.nextSetBit(id + 1)) {
+			writer.append(csv(sessions.get(id)[0]) + "," + csv(sessions.get(id)[1]) + "\n");
+		}
+	}
+
+	private static BitSet parseLines(String list) {
+		BitSet lines = new BitSet();
+
+		for (String range : list.split(",")) {
+			range = range.trim();
+
+			if (range.isEmpty()) {
+				continue;
+			}
+
+			int pivor = range.indexOf('-');
+
+			if (pivor == -1) {
+				lines.set(Integer.parseInt(range));
+			} else {
+				int start = Integer.parseInt(range.substring(0, pivor).trim());
+				int end = Integer.parseInt(range.substring(pivor + 1).trim());
+				lines.set(Math.min(start, end), Math.max(start, end) + 1);
+			}
+		}
+
+		return lines;
+	}
+
+	private static boolean matches(String source, String path) {
+		return source.equals(path) || endsWith(source, path) || endsWith(path, source);
+	}
+
+	private static boolean endsWith(String path, String suffix) {
+		return path.endsWith(suffix) && path.charAt(path.length() - suffix.length() - 1) == '/';
+	}
+
+	private static String csv(String value) {
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+}